@@ -7,6 +7,7 @@ plugins {
     id("qupath.javafx-conventions")
     id("qupath.publishing-conventions")
     `java-library`
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 extra["moduleName"] = "qupath.extension.slidescore"
@@ -28,4 +29,21 @@ dependencies {
     implementation(project(":qupath-gui-fx"))
     implementation(libs.picocli)
     implementation("io.tus.java.client:tus-java-client:0.5.0")
+
+    testImplementation(libs.junit)
+    testRuntimeOnly(libs.junit.platform)
+}
+
+tasks.test {
+    useJUnitPlatform()
+}
+
+// Benchmarks against a local fake Slide Score server, run with gradlew jmh (select with -PjmhIncludes=<regex>)
+jmh {
+    jmhVersion = "1.37"
+    if (project.hasProperty("jmhIncludes"))
+        includes = listOf(project.property("jmhIncludes").toString())
+    // Allocation rates by default, -PjmhProfilers= to turn off
+    profilers = project.findProperty("jmhProfilers")?.toString()?.split(",")?.filter { it.isNotBlank() } ?: listOf("gc")
+    resultFormat = "JSON"
 }
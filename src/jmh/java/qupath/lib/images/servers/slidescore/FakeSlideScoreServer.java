@@ -0,0 +1,174 @@
+package qupath.lib.images.servers.slidescore;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for a Slide Score server, serving the SlideScoreMetadata.json of one synthetic slide and JPEG tiles from
+ * the raw tile endpoint, with a configurable response latency and bandwidth.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class FakeSlideScoreServer implements AutoCloseable {
+
+	private static final Pattern RAW_TILE = Pattern.compile(".*/raw/(\\d+)/(\\d+)_(\\d+)/(\\d+)_(\\d+)\\.jpeg");
+
+	private final int width;
+	private final int height;
+	private final int tileSize;
+	private final int levelCount;
+	private final long latencyMillis;
+	private final long bytesPerSecond;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	// Encoding is not what is measured, tiles of the same size are encoded once
+	private final Map<Long, byte[]> tiles = new ConcurrentHashMap<>();
+
+	/**
+	 * Start a server for a 4-level slide of 100000 x 80000 pixels with 512 pixel tiles.
+	 *
+	 * @param latencyMillis delay before each response
+	 * @param bytesPerSecond bandwidth of each response, 0 for unlimited
+	 * @throws IOException
+	 */
+	public FakeSlideScoreServer(long latencyMillis, long bytesPerSecond) throws IOException {
+		this(100_000, 80_000, 512, 4, latencyMillis, bytesPerSecond);
+	}
+
+	public FakeSlideScoreServer(int width, int height, int tileSize, int levelCount, long latencyMillis, long bytesPerSecond) throws IOException {
+		this.width = width;
+		this.height = height;
+		this.tileSize = tileSize;
+		this.levelCount = levelCount;
+		this.latencyMillis = latencyMillis;
+		this.bytesPerSecond = bytesPerSecond;
+		executor = Executors.newCachedThreadPool(r -> {
+			var thread = new Thread(r, "fake-slidescore-server");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	/**
+	 * Link to the slide's metadata, as stored in a QuPath project.
+	 */
+	public URI getMetadataUri() {
+		return URI.create("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getAddress().getPort()
+				+ "/i/1/benchmark-token/SlideScoreMetadata.json");
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			String path = exchange.getRequestURI().getPath();
+			byte[] body;
+			String contentType;
+			if (path.endsWith("/SlideScoreMetadata.json")) {
+				body = getMetadataJson().getBytes(StandardCharsets.UTF_8);
+				contentType = "application/json";
+			} else {
+				var matcher = RAW_TILE.matcher(path);
+				if (!matcher.matches()) {
+					exchange.sendResponseHeaders(404, -1);
+					return;
+				}
+				int tileWidth = Integer.parseInt(matcher.group(4));
+				int tileHeight = Integer.parseInt(matcher.group(5));
+				body = tiles.computeIfAbsent(((long) tileWidth << 32) | tileHeight, k -> encodeTile(tileWidth, tileHeight));
+				contentType = "image/jpeg";
+			}
+			if (latencyMillis > 0)
+				Thread.sleep(latencyMillis);
+			exchange.getResponseHeaders().set("Content-Type", contentType);
+			exchange.sendResponseHeaders(200, body.length);
+			writeThrottled(exchange, body);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private void writeThrottled(HttpExchange exchange, byte[] body) throws IOException, InterruptedException {
+		var stream = exchange.getResponseBody();
+		if (bytesPerSecond <= 0) {
+			stream.write(body);
+			return;
+		}
+		int chunk = 16 * 1024;
+		long start = System.nanoTime();
+		for (int offset = 0; offset < body.length; offset += chunk) {
+			int n = Math.min(chunk, body.length - offset);
+			stream.write(body, offset, n);
+			stream.flush();
+			long dueNanos = (offset + n) * 1_000_000_000L / bytesPerSecond;
+			long sleepMillis = (dueNanos - (System.nanoTime() - start)) / 1_000_000;
+			if (sleepMillis > 0)
+				Thread.sleep(sleepMillis);
+		}
+	}
+
+	private String getMetadataJson() {
+		var levelWidths = new StringBuilder();
+		var levelHeights = new StringBuilder();
+		for (int level = 0; level < levelCount; level++) {
+			if (level > 0) {
+				levelWidths.append(',');
+				levelHeights.append(',');
+			}
+			levelWidths.append(width >> (2 * level));
+			levelHeights.append(height >> (2 * level));
+		}
+		return "{\"FileName\":\"benchmark.svs\",\"Level0Width\":" + width + ",\"Level0Height\":" + height
+				+ ",\"LevelCount\":" + levelCount + ",\"LevelWidths\":[" + levelWidths + "],\"LevelHeights\":[" + levelHeights + "]"
+				+ ",\"Level0TileWidth\":" + tileSize + ",\"Level0TileHeight\":" + tileSize
+				+ ",\"MppX\":0.25,\"MppY\":0.25,\"ObjectivePower\":40,\"BackgroundColor\":\"#FFFFFF\"}";
+	}
+
+	private static byte[] encodeTile(int tileWidth, int tileHeight) {
+		// Texture so the tiles compress like tissue rather than like a flat color
+		var img = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
+		var g2d = img.createGraphics();
+		g2d.setPaint(new GradientPaint(0, 0, new Color(230, 180, 210), tileWidth, tileHeight, new Color(120, 60, 140)));
+		g2d.fillRect(0, 0, tileWidth, tileHeight);
+		var random = new java.util.Random(tileWidth * 31L + tileHeight);
+		for (int i = 0; i < tileWidth * tileHeight / 200; i++) {
+			g2d.setColor(new Color(80 + random.nextInt(100), 20 + random.nextInt(60), 100 + random.nextInt(100)));
+			g2d.fillOval(random.nextInt(tileWidth), random.nextInt(tileHeight), 4 + random.nextInt(12), 4 + random.nextInt(12));
+		}
+		g2d.dispose();
+		try {
+			var stream = new ByteArrayOutputStream();
+			ImageIO.write(img, "jpeg", stream);
+			return stream.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+}
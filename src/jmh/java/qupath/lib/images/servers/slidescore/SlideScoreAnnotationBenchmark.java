@@ -0,0 +1,182 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.Polygon;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of converting annotations to and from Slide Score answers, with generated workloads whose total number
+ * of vertices is {@link #vertices}:
+ * <ul>
+ *     <li>polygons: many polygons of 50 vertices</li>
+ *     <li>points: a single points annotation</li>
+ *     <li>brush: a multipolygon of 20 parts with 10 holes each</li>
+ * </ul>
+ * Run with {@code gradlew :qupath-extension-slidescore:jmh -PjmhIncludes=SlideScoreAnnotationBenchmark}, the gc profiler
+ * reports the allocation rate.
+ *
+ * @author Jan Hudecek
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class SlideScoreAnnotationBenchmark {
+
+	private static final int POLYGON_VERTICES = 50;
+	private static final int BRUSH_PARTS = 20;
+	private static final int BRUSH_HOLES = 10;
+
+	@Param({"polygons", "points", "brush"})
+	public String shape;
+
+	@Param({"1000", "10000", "100000"})
+	public int vertices;
+
+	private List<PathObject> objects;
+	private String answer;
+	private List<ROI> rois;
+	private ImageData<BufferedImage> imageData;
+	private final SlideScoreImportAnswersCommand importer = new SlideScoreImportAnswersCommand();
+
+	@Setup(Level.Trial)
+	public void createWorkload() throws Exception {
+		var random = new Random(42);
+		objects = new ArrayList<>();
+		switch (shape) {
+			case "polygons":
+				for (int i = 0; i < Math.max(1, vertices / POLYGON_VERTICES); i++) {
+					double cx = random.nextInt(100_000), cy = random.nextInt(80_000);
+					double[] x = new double[POLYGON_VERTICES], y = new double[POLYGON_VERTICES];
+					for (int v = 0; v < POLYGON_VERTICES; v++) {
+						double angle = 2 * Math.PI * v / POLYGON_VERTICES;
+						double r = 100 + random.nextInt(50);
+						x[v] = cx + r * Math.cos(angle);
+						y[v] = cy + r * Math.sin(angle);
+					}
+					objects.add(PathObjects.createAnnotationObject(ROIs.createPolygonROI(x, y, ImagePlane.getDefaultPlane())));
+				}
+				break;
+			case "points":
+				double[] x = new double[vertices], y = new double[vertices];
+				for (int v = 0; v < vertices; v++) {
+					x[v] = random.nextInt(100_000);
+					y[v] = random.nextInt(80_000);
+				}
+				objects.add(PathObjects.createAnnotationObject(ROIs.createPointsROI(x, y, ImagePlane.getDefaultPlane())));
+				break;
+			case "brush":
+				objects.add(PathObjects.createAnnotationObject(GeometryTools.geometryToROI(createBrush(), ImagePlane.getDefaultPlane())));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown shape " + shape);
+		}
+
+		if (shape.equals("points")) {
+			// Points are answered as plain coordinates, not as shapes
+			var sb = new StringBuilder("[");
+			var roi = objects.get(0).getROI();
+			for (var p : roi.getAllPoints()) {
+				if (sb.length() > 1)
+					sb.append(',');
+				sb.append("{\"x\":").append((int) p.getX()).append(",\"y\":").append((int) p.getY()).append('}');
+			}
+			answer = sb.append(']').toString();
+		} else {
+			answer = SlideScoreUploadAnnotationsCommand.annotationsToJson(objects);
+		}
+		rois = parseAnswer();
+	}
+
+	/**
+	 * Multipolygon of parts in a row, each a circle with smaller circular holes
+	 */
+	private Polygon[] createBrushParts(int ringVertices) {
+		var factory = GeometryTools.getDefaultFactory();
+		var parts = new Polygon[BRUSH_PARTS];
+		for (int p = 0; p < BRUSH_PARTS; p++) {
+			double cx = p * 3000 + 1500, cy = 1500;
+			var holes = new LinearRing[BRUSH_HOLES];
+			for (int h = 0; h < BRUSH_HOLES; h++) {
+				double angle = 2 * Math.PI * h / BRUSH_HOLES;
+				holes[h] = createRing(cx + 800 * Math.cos(angle), cy + 800 * Math.sin(angle), 150, ringVertices);
+			}
+			parts[p] = factory.createPolygon(createRing(cx, cy, 1400, ringVertices), holes);
+		}
+		return parts;
+	}
+
+	private Geometry createBrush() {
+		int ringVertices = Math.max(8, vertices / (BRUSH_PARTS * (1 + BRUSH_HOLES)));
+		return GeometryTools.getDefaultFactory().createMultiPolygon(createBrushParts(ringVertices));
+	}
+
+	private static LinearRing createRing(double cx, double cy, double r, int n) {
+		var coords = new Coordinate[n + 1];
+		for (int i = 0; i < n; i++) {
+			double angle = 2 * Math.PI * i / n;
+			coords[i] = new Coordinate(cx + r * Math.cos(angle), cy + r * Math.sin(angle));
+		}
+		coords[n] = coords[0];
+		return GeometryTools.getDefaultFactory().createLinearRing(coords);
+	}
+
+	@Setup(Level.Invocation)
+	public void createImageData() {
+		imageData = new ImageData<>(null);
+	}
+
+	/**
+	 * Serialize the annotations for upload
+	 */
+	@Benchmark
+	public String annotationsToJson() throws Exception {
+		return SlideScoreUploadAnnotationsCommand.annotationsToJson(objects);
+	}
+
+	/**
+	 * Parse a downloaded answer into ROIs
+	 */
+	@Benchmark
+	public List<ROI> parseAnswer() throws Exception {
+		return SlideScoreAnnotationReader.fromJson(answer);
+	}
+
+	/**
+	 * Create QuPath annotations from parsed ROIs and add them to an empty hierarchy
+	 */
+	@Benchmark
+	public ImageData<BufferedImage> importAnnotation() {
+		SlideScoreImportAnswersCommand.addObjects(imageData, importer.createAnnotations(rois, null, null));
+		return imageData;
+	}
+}
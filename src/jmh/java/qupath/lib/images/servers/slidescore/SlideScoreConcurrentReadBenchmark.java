@@ -0,0 +1,82 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of many threads reading tiles of the same slide at once, e.g. several viewers or an analysis running
+ * next to the viewer. Each operation is one tile, so the scores of different numbers of readers compare directly.
+ * <p>
+ * Run with {@code gradlew :qupath-extension-slidescore:jmh -PjmhIncludes=SlideScoreConcurrentReadBenchmark}.
+ *
+ * @author Jan Hudecek
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class SlideScoreConcurrentReadBenchmark extends TileReadFixture {
+
+	private static final int TILES_PER_READER = 16;
+	private static final int MAX_READERS = 32;
+
+	@Param({"1", "2", "4", "8", "16", "32"})
+	public int readers;
+
+	private ExecutorService readerPool;
+
+	@Setup(Level.Trial)
+	public void setUpReaders() {
+		readerPool = Executors.newFixedThreadPool(readers, r -> {
+			var thread = new Thread(r, "benchmark-reader");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownReaders() {
+		readerPool.shutdownNow();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MAX_READERS * TILES_PER_READER)
+	public void readTiles(Blackhole blackhole) throws Exception {
+		// The same number of tiles for any number of readers, split between them
+		var futures = new ArrayList<Future<Integer>>(readers);
+		int tilesPerReader = MAX_READERS * TILES_PER_READER / readers;
+		for (int i = 0; i < readers; i++) {
+			futures.add(readerPool.submit(() -> {
+				// Blackholes are not shared between threads, consume what was read on the benchmark thread
+				int pixels = 0;
+				for (int t = 0; t < tilesPerReader; t++) {
+					var img = server.readTile(nextTile());
+					if (img != null)
+						pixels += img.getWidth() * img.getHeight();
+				}
+				return pixels;
+			}));
+		}
+		for (var future : futures)
+			blackhole.consume(future.get());
+	}
+}
@@ -0,0 +1,100 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of opening a Slide Score slide and reading its tiles, the way the viewer does.
+ * <p>
+ * Run with {@code gradlew :qupath-extension-slidescore:jmh -PjmhIncludes=SlideScoreTileReadBenchmark}.
+ *
+ * @author Jan Hudecek
+ *
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class SlideScoreTileReadBenchmark extends TileReadFixture {
+
+	private static final int VIEWPORT_WIDTH = 1920;
+	private static final int VIEWPORT_HEIGHT = 1080;
+	// Number of tiles the viewer requests at the same time
+	private static final int VIEWER_THREADS = 8;
+
+	private ExecutorService viewerPool;
+	private int nextViewport = 0;
+
+	@Setup(Level.Trial)
+	public void setUpViewer() {
+		viewerPool = Executors.newFixedThreadPool(VIEWER_THREADS, r -> {
+			var thread = new Thread(r, "benchmark-viewer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownViewer() {
+		viewerPool.shutdownNow();
+	}
+
+	/**
+	 * Open a slide whose metadata hasn't been cached yet
+	 */
+	@Benchmark
+	public Object openSlide() throws Exception {
+		SlideScoreMetadataCache.getInstance().invalidate(fakeServer.getMetadataUri());
+		var newServer = new SlideScoreImageServer(fakeServer.getMetadataUri().toString());
+		newServer.close();
+		return newServer;
+	}
+
+	/**
+	 * Open a slide that has been opened before, e.g. when reopening a project
+	 */
+	@Benchmark
+	public Object reopenSlide() throws Exception {
+		var newServer = new SlideScoreImageServer(fakeServer.getMetadataUri().toString());
+		newServer.close();
+		return newServer;
+	}
+
+	@Benchmark
+	public BufferedImage readTile() throws Exception {
+		return server.readTile(nextTile());
+	}
+
+	/**
+	 * Read all tiles of a full HD viewport at full resolution, moving the viewport every time
+	 */
+	@Benchmark
+	public void fillViewport(Blackhole blackhole) throws Exception {
+		// Stay within the first rows of tiles, which are cached when the tile cache is enabled
+		int x = (nextViewport++ * VIEWPORT_WIDTH) % (server.getWidth() - VIEWPORT_WIDTH);
+		var region = RegionRequest.createInstance(server.getPath(), 1, x, 0, VIEWPORT_WIDTH, VIEWPORT_HEIGHT);
+		var futures = new ArrayList<Future<BufferedImage>>();
+		for (var tile : server.getTileRequestManager().getTileRequests(region))
+			futures.add(viewerPool.submit(() -> server.readTile(tile)));
+		for (var future : futures)
+			blackhole.consume(future.get());
+	}
+}
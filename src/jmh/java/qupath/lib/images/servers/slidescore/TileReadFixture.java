@@ -0,0 +1,85 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import qupath.lib.images.servers.TileRequest;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Slide Score server opened against a {@link FakeSlideScoreServer}, shared by the tile read benchmarks.
+ * <p>
+ * Every benchmark runs in its own fork, so the caches and HTTP client start cold for each combination of parameters.
+ *
+ * @author Jan Hudecek
+ *
+ */
+@State(Scope.Benchmark)
+public abstract class TileReadFixture {
+
+	// Tiles read in turn, small enough to be fully cached during setup when the tile cache is enabled
+	static final int WORKING_SET = 1024;
+
+	@Param({"0", "20"})
+	public long latencyMillis;
+
+	/** Bandwidth per response in Mbit/s, 0 for unlimited */
+	@Param({"0", "100"})
+	public long bandwidthMbit;
+
+	@Param({"false", "true"})
+	public boolean tileCache;
+
+	FakeSlideScoreServer fakeServer;
+	SlideScoreImageServer server;
+	List<TileRequest> tiles;
+	private Path tempDirectory;
+	private final AtomicInteger nextTile = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUpServer() throws Exception {
+		tempDirectory = Files.createTempDirectory("slidescore-benchmark");
+		SlideScoreSettings.setTileCacheEnabled(tileCache);
+		SlideScoreSettings.setTileCacheDirectory(tempDirectory.resolve("tiles"));
+		SlideScoreSettings.setMetadataCacheDirectory(tempDirectory.resolve("metadata"));
+		SlideScoreSettings.setMirrorDirectory(tempDirectory.resolve("mirrors"));
+		// Prefetching would read tiles the benchmark asks for next ahead of time
+		SlideScoreSettings.setPrefetchEnabled(false);
+
+		fakeServer = new FakeSlideScoreServer(latencyMillis, bandwidthMbit * 125_000);
+		server = new SlideScoreImageServer(fakeServer.getMetadataUri().toString());
+		tiles = new ArrayList<>(server.getTileRequestManager().getTileRequestsForLevel(0));
+		tiles = tiles.subList(0, Math.min(WORKING_SET, tiles.size()));
+		if (tileCache) {
+			for (var tile : tiles)
+				server.readTiles(List.of(tile));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownServer() throws Exception {
+		server.close();
+		fakeServer.close();
+		try (Stream<Path> paths = Files.walk(tempDirectory)) {
+			for (var path : paths.sorted(Comparator.reverseOrder()).toList())
+				Files.deleteIfExists(path);
+		}
+	}
+
+	/**
+	 * Next tile of the working set, so consecutive reads are different tiles
+	 */
+	TileRequest nextTile() {
+		return tiles.get(Math.floorMod(nextTile.getAndIncrement(), tiles.size()));
+	}
+}
@@ -0,0 +1,398 @@
+package qupath.lib.images.servers.slidescore;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.util.GeometryFixer;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Reads a Slide Score annotation answer into ROIs.
+ * <p>
+ * The answer is either a list of points or a list of shapes (rect, ellipse, polygon and brush). It is decoded with a
+ * streaming {@link JsonReader} straight into coordinate arrays, without building a JSON tree or
+ * {@link SlideScoreAnnotation} objects first, so large answers need little more memory than the ROIs created from them.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreAnnotationReader {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlideScoreAnnotationReader.class);
+
+	/**
+	 * Growable list of coordinates, reused for every shape of an answer
+	 */
+	private static class Coordinates {
+		double[] x = new double[64];
+		double[] y = new double[64];
+		int size;
+
+		void add(double px, double py) {
+			if (size == x.length) {
+				x = Arrays.copyOf(x, size * 2);
+				y = Arrays.copyOf(y, size * 2);
+			}
+			x[size] = px;
+			y[size] = py;
+			size++;
+		}
+
+		double[] getX() {
+			return Arrays.copyOf(x, size);
+		}
+
+		double[] getY() {
+			return Arrays.copyOf(y, size);
+		}
+	}
+
+	/**
+	 * Ring of a brush annotation
+	 */
+	private static class Ring {
+		final double[] x, y;
+
+		Ring(Coordinates coordinates) {
+			x = coordinates.getX();
+			y = coordinates.getY();
+		}
+	}
+
+	private final JsonReader reader;
+	private final ImagePlane plane = ImagePlane.getDefaultPlane();
+	private final GeometryFactory factory = GeometryTools.getDefaultFactory();
+	private final List<ROI> rois = new ArrayList<>();
+	private final Coordinates points = new Coordinates();
+	private final Coordinates coordinates = new Coordinates();
+
+	// Fields of the shape being read
+	private String type;
+	private double x, y;
+	private double[] center, size, corner;
+	private Ring polygon;
+	private final List<Ring> positiveRings = new ArrayList<>();
+	private final List<Ring> negativeRings = new ArrayList<>();
+
+	private SlideScoreAnnotationReader(Reader reader) {
+		this.reader = new JsonReader(reader);
+	}
+
+	/**
+	 * Read an answer into ROIs.
+	 *
+	 * @param answer JSON array of points or shapes
+	 * @return ROIs of the shapes, all points of the answer are a single points ROI
+	 * @throws IOException if the answer is not a valid annotation
+	 */
+	public static List<ROI> fromJson(String answer) throws IOException {
+		return read(new StringReader(answer));
+	}
+
+	/**
+	 * Read an answer into ROIs. The reader isn't closed.
+	 *
+	 * @param reader JSON array of points or shapes
+	 * @return ROIs of the shapes, all points of the answer are a single points ROI
+	 * @throws IOException if reading fails or the answer is not a valid annotation
+	 */
+	public static List<ROI> read(Reader reader) throws IOException {
+		try {
+			return new SlideScoreAnnotationReader(reader).readAnnotations();
+		} catch (IllegalStateException | NumberFormatException ex) {
+			// JsonReader reports unexpected tokens with IllegalStateException
+			throw new IOException("Parsing of answers failed", ex);
+		}
+	}
+
+	private List<ROI> readAnnotations() throws IOException {
+		reader.beginArray();
+		while (reader.hasNext())
+			readAnnotation();
+		reader.endArray();
+		if (points.size > 0)
+			rois.add(0, ROIs.createPointsROI(points.getX(), points.getY(), plane));
+		return rois;
+	}
+
+	private void readAnnotation() throws IOException {
+		type = null;
+		x = y = 0;
+		center = size = corner = null;
+		polygon = null;
+		positiveRings.clear();
+		negativeRings.clear();
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+				case "type":
+					type = nextString();
+					break;
+				case "x":
+					x = reader.nextDouble();
+					break;
+				case "y":
+					y = reader.nextDouble();
+					break;
+				case "center":
+					center = readPoint();
+					break;
+				case "size":
+					size = readPoint();
+					break;
+				case "corner":
+					corner = readPoint();
+					break;
+				case "points":
+					polygon = readRing();
+					break;
+				case "positivePolygons":
+					readRings(positiveRings);
+					break;
+				case "negativePolygons":
+					readRings(negativeRings);
+					break;
+				default:
+					// area, modifiedOn, label etc. aren't imported
+					reader.skipValue();
+					break;
+			}
+		}
+		reader.endObject();
+
+		// Points are answered as plain coordinates without a type
+		if (type == null) {
+			points.add(x, y);
+			return;
+		}
+		var roi = createROI();
+		if (roi != null)
+			rois.add(roi);
+	}
+
+	private ROI createROI() throws IOException {
+		switch (type.toLowerCase()) {
+			case "rect":
+				checkPresent(corner, "corner");
+				checkPresent(size, "size");
+				return ROIs.createRectangleROI(corner[0], corner[1], size[0], size[1], plane);
+			case "ellipse":
+				checkPresent(center, "center");
+				checkPresent(size, "size");
+				return ROIs.createEllipseROI(center[0] - size[0], center[1] - size[1], size[0] * 2, size[1] * 2, plane);
+			case "polygon":
+				checkPresent(polygon, "points");
+				return ROIs.createPolygonROI(polygon.x, polygon.y, plane);
+			case "brush":
+				return createBrushROI();
+			default:
+				logger.warn("Encountered unknown annotation type " + type);
+				return null;
+		}
+	}
+
+	/**
+	 * Brush annotations are the union of the positive rings minus the union of the negative rings.
+	 * <p>
+	 * The positive polygons are grouped into clusters whose envelopes overlap. Clusters can't overlap each other, so
+	 * each is unioned and has its holes cut out independently, in parallel, and the results are simply collected.
+	 * Masks with thousands of islands thereby never union more than a few polygons at a time.
+	 */
+	private ROI createBrushROI() {
+		var positive = toPolygons(positiveRings);
+		var negative = toPolygons(negativeRings);
+		if (positive.isEmpty()) {
+			logger.warn("Brush annotation has no positive polygons");
+			return null;
+		}
+		var negativeIndex = new STRtree();
+		for (var hole : negative)
+			negativeIndex.insert(hole.getEnvelopeInternal(), hole);
+		// Build before the parallel queries, the tree builds itself lazily otherwise
+		negativeIndex.build();
+
+		var clusters = getClusters(positive);
+		var stream = clusters.size() > 1 ? clusters.parallelStream() : clusters.stream();
+		var parts = stream.map(cluster -> {
+			var envelope = new Envelope();
+			for (var part : cluster)
+				envelope.expandToInclude(part.getEnvelopeInternal());
+			Geometry geometry = UnaryUnionOp.union(cluster);
+			@SuppressWarnings("unchecked")
+			List<Geometry> holes = negativeIndex.query(envelope);
+			if (!holes.isEmpty())
+				geometry = geometry.difference(UnaryUnionOp.union(holes));
+			return geometry;
+		}).collect(Collectors.toList());
+
+		var polygons = new ArrayList<Geometry>();
+		for (var part : parts) {
+			for (int i = 0; i < part.getNumGeometries(); i++) {
+				var geometry = part.getGeometryN(i);
+				if (geometry instanceof Polygon && !geometry.isEmpty())
+					polygons.add(geometry);
+			}
+		}
+		if (polygons.isEmpty()) {
+			logger.warn("Brush annotation has no area");
+			return null;
+		}
+		return GeometryTools.geometryToROI(factory.buildGeometry(polygons), plane);
+	}
+
+	private List<Geometry> toPolygons(List<Ring> rings) {
+		var polygons = new ArrayList<Geometry>(rings.size());
+		for (var ring : rings) {
+			if (ring == null || ring.x.length < 3)
+				continue;
+			boolean closed = ring.x[0] == ring.x[ring.x.length - 1] && ring.y[0] == ring.y[ring.y.length - 1];
+			var coords = new Coordinate[closed ? ring.x.length : ring.x.length + 1];
+			for (int i = 0; i < ring.x.length; i++)
+				coords[i] = new Coordinate(ring.x[i], ring.y[i]);
+			coords[coords.length - 1] = coords[0];
+			if (coords.length < 4)
+				continue;
+			Geometry geometry = factory.createPolygon(coords);
+			// Drawn rings can cross themselves
+			if (!geometry.isValid())
+				geometry = GeometryFixer.fix(geometry);
+			if (!geometry.isEmpty())
+				polygons.add(geometry);
+		}
+		return polygons;
+	}
+
+	/**
+	 * Group polygons whose envelopes overlap, directly or through other polygons
+	 */
+	private static List<List<Geometry>> getClusters(List<Geometry> polygons) {
+		var index = new STRtree();
+		for (int i = 0; i < polygons.size(); i++)
+			index.insert(polygons.get(i).getEnvelopeInternal(), i);
+		// Union-find over the polygon indices
+		int[] parent = new int[polygons.size()];
+		for (int i = 0; i < parent.length; i++)
+			parent[i] = i;
+		for (int i = 0; i < polygons.size(); i++) {
+			for (Object other : index.query(polygons.get(i).getEnvelopeInternal())) {
+				int a = find(parent, i), b = find(parent, (Integer) other);
+				if (a != b)
+					parent[Math.max(a, b)] = Math.min(a, b);
+			}
+		}
+		var clusters = new LinkedHashMap<Integer, List<Geometry>>();
+		for (int i = 0; i < polygons.size(); i++)
+			clusters.computeIfAbsent(find(parent, i), k -> new ArrayList<>()).add(polygons.get(i));
+		return new ArrayList<>(clusters.values());
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private void checkPresent(Object value, String name) throws IOException {
+		if (value == null)
+			throw new IOException("Annotation of type " + type + " has no " + name);
+	}
+
+	private String nextString() throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		return reader.nextString();
+	}
+
+	private double[] readPoint() throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		double px = 0, py = 0;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+				case "x":
+					px = reader.nextDouble();
+					break;
+				case "y":
+					py = reader.nextDouble();
+					break;
+				default:
+					reader.skipValue();
+					break;
+			}
+		}
+		reader.endObject();
+		return new double[] {px, py};
+	}
+
+	/**
+	 * Read an array of points into a ring, the coordinates are collected in the shared buffer first
+	 */
+	private Ring readRing() throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		coordinates.size = 0;
+		reader.beginArray();
+		while (reader.hasNext()) {
+			double px = 0, py = 0;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				switch (reader.nextName()) {
+					case "x":
+						px = reader.nextDouble();
+						break;
+					case "y":
+						py = reader.nextDouble();
+						break;
+					default:
+						reader.skipValue();
+						break;
+				}
+			}
+			reader.endObject();
+			coordinates.add(px, py);
+		}
+		reader.endArray();
+		return new Ring(coordinates);
+	}
+
+	private void readRings(List<Ring> rings) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return;
+		}
+		reader.beginArray();
+		while (reader.hasNext())
+			rings.add(readRing());
+		reader.endArray();
+	}
+}
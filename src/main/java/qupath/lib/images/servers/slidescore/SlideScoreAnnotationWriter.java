@@ -0,0 +1,208 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathROIObject;
+import qupath.lib.roi.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collection;
+
+/**
+ * Writes annotations as a Slide Score AnnoShapes answer.
+ * <p>
+ * The JSON is streamed to a {@link Writer} straight from the ROIs and the JTS coordinate sequences of brush annotations,
+ * so the memory needed doesn't grow with the number of vertices. Use with {@link SlideScoreAnswerBuffer} to upload
+ * large answers without holding them in memory.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreAnnotationWriter {
+
+	private final Writer writer;
+	// Scratch space for formatting coordinates without allocating strings
+	private final char[] digits = new char[11];
+	private boolean first;
+
+	private SlideScoreAnnotationWriter(Writer writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * Serialize annotations to a string.
+	 *
+	 * @param objects
+	 * @return
+	 * @throws IOException if the brush annotations have no polygons
+	 */
+	public static String toJson(Collection<PathObject> objects) throws IOException {
+		var stringWriter = new StringWriter();
+		write(objects, stringWriter);
+		return stringWriter.toString();
+	}
+
+	/**
+	 * Serialize annotations to a writer. Only the annotations' ROIs are read, the writer isn't closed.
+	 *
+	 * @param objects
+	 * @param writer
+	 * @throws IOException if the writer fails or the brush annotations have no polygons
+	 */
+	public static void write(Collection<PathObject> objects, Writer writer) throws IOException {
+		new SlideScoreAnnotationWriter(writer).writeAnnotations(objects);
+	}
+
+	private void writeAnnotations(Collection<PathObject> objects) throws IOException {
+		boolean hasGeometry = false;
+		first = true;
+		writer.write('[');
+		for (PathObject obj : objects) {
+			if (!(obj instanceof PathROIObject))
+				continue;
+			var roi = obj.getROI();
+			if (roi instanceof EllipseROI) {
+				startShape();
+				writer.write("{ \"type\": \"ellipse\", \"center\": ");
+				writePoint(roi.getCentroidX(), roi.getCentroidY());
+				writer.write(", \"size\": ");
+				writePoint(roi.getBoundsWidth() / 2, roi.getBoundsHeight() / 2);
+				writer.write('}');
+			} else if (roi instanceof PointsROI) {
+				for (var p : roi.getAllPoints()) {
+					startShape();
+					writer.write("{ \"type\": \"ellipse\", \"center\": ");
+					writePoint(p.getX(), p.getY());
+					writer.write(", \"size\": ");
+					writePoint(10, 10);
+					writer.write('}');
+				}
+			} else if (roi instanceof PolygonROI || roi instanceof PolylineROI) {
+				startShape();
+				writer.write(roi instanceof PolygonROI ? "{ \"type\": \"polygon\", \"points\": [" : "{ \"type\": \"polyline\", \"points\": [");
+				boolean firstPoint = true;
+				for (var p : roi.getAllPoints()) {
+					if (!firstPoint)
+						writer.write(',');
+					firstPoint = false;
+					writePoint(p.getX(), p.getY());
+				}
+				writer.write("]}");
+			} else if (roi instanceof RectangleROI) {
+				var hull = roi.getConvexHull();
+				startShape();
+				writer.write("{ \"type\": \"rect\", \"corner\": ");
+				writePoint(hull.getBoundsX(), hull.getBoundsY());
+				writer.write(", \"size\": ");
+				writePoint(hull.getBoundsWidth(), hull.getBoundsHeight());
+				writer.write('}');
+			} else if (roi instanceof GeometryROI) {
+				hasGeometry = true;
+			}
+		}
+		if (hasGeometry)
+			writeBrush(objects);
+		writer.write(']');
+	}
+
+	/**
+	 * Write all geometry annotations as one brush shape, exterior rings are positive and holes negative polygons
+	 */
+	private void writeBrush(Collection<PathObject> objects) throws IOException {
+		// A polygon always has an exterior ring, so there are no rings at all only without polygons
+		boolean hasPolygons = false;
+		for (PathObject obj : objects) {
+			if (obj.getROI() instanceof GeometryROI && getPolygonCount(obj.getROI().getGeometry()) > 0) {
+				hasPolygons = true;
+				break;
+			}
+		}
+		if (!hasPolygons)
+			throw new IOException("Failed to find annotations to import. Too complex?");
+
+		startShape();
+		writer.write("{ \"type\": \"brush\", \"positivePolygons\": [");
+		writeRings(objects, true);
+		writer.write("], \"negativePolygons\": [");
+		writeRings(objects, false);
+		writer.write("]}");
+	}
+
+	private void writeRings(Collection<PathObject> objects, boolean exterior) throws IOException {
+		boolean firstRing = true;
+		for (PathObject obj : objects) {
+			if (!(obj.getROI() instanceof GeometryROI))
+				continue;
+			var geometry = obj.getROI().getGeometry();
+			int n = getPolygonCount(geometry);
+			for (int i = 0; i < n; i++) {
+				var polygon = (Polygon) geometry.getGeometryN(i);
+				if (exterior) {
+					firstRing = writeRing(polygon.getExteriorRing().getCoordinateSequence(), firstRing);
+				} else {
+					for (int h = 0; h < polygon.getNumInteriorRing(); h++)
+						firstRing = writeRing(polygon.getInteriorRingN(h).getCoordinateSequence(), firstRing);
+				}
+			}
+		}
+	}
+
+	private boolean writeRing(CoordinateSequence coords, boolean firstRing) throws IOException {
+		if (!firstRing)
+			writer.write(',');
+		writer.write('[');
+		for (int i = 0; i < coords.size(); i++) {
+			if (i > 0)
+				writer.write(',');
+			writePoint(coords.getX(i), coords.getY(i));
+		}
+		writer.write(']');
+		return false;
+	}
+
+	/**
+	 * Number of polygons of a Polygon or MultiPolygon, other geometries have none
+	 */
+	private static int getPolygonCount(Geometry geometry) {
+		if (geometry instanceof Polygon || geometry instanceof MultiPolygon)
+			return geometry.getNumGeometries();
+		return 0;
+	}
+
+	private void startShape() throws IOException {
+		if (!first)
+			writer.write(',');
+		first = false;
+	}
+
+	private void writePoint(double x, double y) throws IOException {
+		writer.write("{\"x\":");
+		writeInt((int) x);
+		writer.write(", \"y\":");
+		writeInt((int) y);
+		writer.write('}');
+	}
+
+	private void writeInt(int value) throws IOException {
+		if (value == Integer.MIN_VALUE) {
+			writer.write(Integer.toString(value));
+			return;
+		}
+		boolean negative = value < 0;
+		if (negative)
+			value = -value;
+		int pos = digits.length;
+		do {
+			digits[--pos] = (char) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		if (negative)
+			digits[--pos] = '-';
+		writer.write(digits, pos, digits.length - pos);
+	}
+}
@@ -0,0 +1,143 @@
+package qupath.lib.images.servers.slidescore;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writer for an answer that is kept in memory while it is small and moved to a gzipped temp file once it isn't.
+ * <p>
+ * Small answers are posted as form fields, large ones are uploaded from the temp file with
+ * {@link SlideScoreImageServer#postLargeAnnotation(String, File, int)}, so a large answer is never held in memory.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreAnswerBuffer extends Writer {
+
+	/**
+	 * Answers longer than this are uploaded as files
+	 */
+	public static final int MAX_INLINE_LENGTH = 100000;
+
+	private final int maxInlineLength;
+	private StringBuilder inline = new StringBuilder();
+	private File file;
+	private Writer fileWriter;
+
+	public SlideScoreAnswerBuffer() {
+		this(MAX_INLINE_LENGTH);
+	}
+
+	public SlideScoreAnswerBuffer(int maxInlineLength) {
+		this.maxInlineLength = maxInlineLength;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if (fileWriter == null && inline.length() + len > maxInlineLength)
+			spill();
+		if (fileWriter != null)
+			fileWriter.write(cbuf, off, len);
+		else
+			inline.append(cbuf, off, len);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		if (fileWriter == null && inline.length() + len > maxInlineLength)
+			spill();
+		if (fileWriter != null)
+			fileWriter.write(str, off, len);
+		else
+			inline.append(str, off, off + len);
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		if (fileWriter == null && inline.length() + 1 > maxInlineLength)
+			spill();
+		if (fileWriter != null)
+			fileWriter.write(c);
+		else
+			inline.append((char) c);
+	}
+
+	private void spill() throws IOException {
+		file = File.createTempFile("qupath_anno_", ".json.gz");
+		try {
+			fileWriter = new BufferedWriter(new OutputStreamWriter(
+					new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file)), 64 * 1024), StandardCharsets.UTF_8));
+			fileWriter.append(inline);
+		} catch (IOException e) {
+			delete();
+			throw e;
+		}
+		inline = null;
+	}
+
+	/**
+	 * Whether the answer was too large to keep in memory and was written to {@link #getFile()}.
+	 */
+	public boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * Gzipped answer, only valid after {@link #close()}
+	 *
+	 * @return the file, or null if the answer is kept in memory
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * The answer, if it is kept in memory
+	 */
+	@Override
+	public String toString() {
+		if (inline == null)
+			throw new IllegalStateException("Answer was written to " + file);
+		return inline.toString();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (fileWriter != null)
+			fileWriter.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (fileWriter != null) {
+			fileWriter.close();
+			fileWriter = null;
+		}
+	}
+
+	/**
+	 * Close the buffer and delete its temp file, if any
+	 */
+	public void delete() {
+		try {
+			close();
+		} catch (IOException e) {
+			// Only the file matters
+		}
+		if (file != null) {
+			try {
+				Files.deleteIfExists(file.toPath());
+			} catch (IOException e) {
+				file.deleteOnExit();
+			}
+		}
+	}
+}
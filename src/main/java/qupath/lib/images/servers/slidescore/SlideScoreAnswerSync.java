@@ -0,0 +1,115 @@
+package qupath.lib.images.servers.slidescore;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps track of which answers were imported into an image, so that a later import can skip the unchanged ones.
+ * <p>
+ * For every imported answer, identified by its question and account, a hash of its content and the time of the import
+ * are stored as a property of the image data, so they are saved with the project. The imported annotations are tagged
+ * with the answer in their metadata, so they can be replaced when the answer changes.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreAnswerSync {
+
+	/**
+	 * Metadata key of imported annotations, the value is the answer's key
+	 */
+	public static final String METADATA_KEY = "slidescore.answer";
+
+	private static final String PROPERTY_PREFIX = "slidescore.answer.";
+
+	private SlideScoreAnswerSync() {
+	}
+
+	/**
+	 * Key of an answer, unique per slide. Slide Score separates the fields of answers with ';', so the key can be split.
+	 */
+	public static String getKey(SlideScoreAnswer answer) {
+		return answer.question + ";" + answer.email;
+	}
+
+	/**
+	 * Whether the answer is the same as when it was last imported into the image
+	 */
+	public static boolean isUnchanged(ImageData<?> imageData, SlideScoreAnswer answer) {
+		var recorded = imageData.getProperty(PROPERTY_PREFIX + getKey(answer));
+		return recorded instanceof String && ((String) recorded).startsWith(getHash(answer) + ";");
+	}
+
+	/**
+	 * Remember that the answer was imported into the image
+	 */
+	public static void record(ImageData<?> imageData, SlideScoreAnswer answer) {
+		imageData.setProperty(PROPERTY_PREFIX + getKey(answer), getHash(answer) + ";" + Instant.now());
+	}
+
+	/**
+	 * Forget an imported answer, e.g. because it was deleted on Slide Score
+	 */
+	public static void forget(ImageData<?> imageData, String key) {
+		imageData.removeProperty(PROPERTY_PREFIX + key);
+	}
+
+	/**
+	 * Keys of the answers imported into the image
+	 */
+	public static Set<String> getImportedKeys(ImageData<?> imageData) {
+		var keys = new HashSet<String>();
+		for (var name : imageData.getProperties().keySet()) {
+			if (name.startsWith(PROPERTY_PREFIX))
+				keys.add(name.substring(PROPERTY_PREFIX.length()));
+		}
+		return keys;
+	}
+
+	/**
+	 * Mark an annotation as imported from the answer
+	 */
+	public static void tag(PathObject pathObject, SlideScoreAnswer answer) {
+		pathObject.getMetadata().put(METADATA_KEY, getKey(answer));
+	}
+
+	/**
+	 * Remove the annotations imported from the answers with the given keys, objects within them are kept.
+	 */
+	public static void removeImported(ImageData<?> imageData, Collection<String> keys) {
+		if (keys.isEmpty())
+			return;
+		var toRemove = new ArrayList<PathObject>();
+		for (var pathObject : imageData.getHierarchy().getAnnotationObjects()) {
+			var key = pathObject.getMetadata().get(METADATA_KEY);
+			if (key != null && keys.contains(key))
+				toRemove.add(pathObject);
+		}
+		if (!toRemove.isEmpty())
+			imageData.getHierarchy().removeObjects(toRemove, true);
+	}
+
+	private static String getHash(SlideScoreAnswer answer) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-1");
+			digest.update(answer.value.getBytes(StandardCharsets.UTF_8));
+			if (answer.color != null)
+				digest.update(Integer.toString(answer.color).getBytes(StandardCharsets.UTF_8));
+			var sb = new StringBuilder();
+			for (byte b : digest.digest())
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
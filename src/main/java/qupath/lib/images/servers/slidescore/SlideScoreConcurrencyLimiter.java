@@ -0,0 +1,119 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Adaptive limit on the number of concurrent requests to one Slide Score server.
+ * <p>
+ * The limit follows AIMD: it grows by one request per limit's worth of fast responses and is halved when the server
+ * answers 429/503 or times out. A response time well above the best recent one also shrinks the limit a bit,
+ * so the number of requests in flight settles at what the server can sustain. Requests over the limit wait for a slot.
+ * <p>
+ * Only response times of requests of about the same size, i.e. single tiles, are compared. Regions, metadata and
+ * answers take longer because they are larger, they only take part in the limit through their outcome.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreConcurrencyLimiter {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlideScoreConcurrencyLimiter.class);
+
+	// Response times over this multiple of the baseline count as congestion
+	private static final double LATENCY_TOLERANCE = 2.0;
+
+	/**
+	 * How a request ended, as far as the server load is concerned.
+	 */
+	public enum Outcome {
+		SUCCESS,
+		/** 429, 503 or a timeout */
+		OVERLOADED,
+		/** Any other failure, says nothing about the load */
+		IGNORED
+	}
+
+	private final String host;
+	private final int maxLimit;
+	private double limit;
+	private int inFlight = 0;
+	private double baselineMillis = -1;
+	private long lastDecrease = 0;
+
+	public SlideScoreConcurrencyLimiter(String host, int maxLimit) {
+		this.host = host;
+		this.maxLimit = Math.max(1, maxLimit);
+		this.limit = Math.max(1, this.maxLimit / 2);
+	}
+
+	/**
+	 * Wait until another request may be sent.
+	 *
+	 * @throws InterruptedIOException
+	 */
+	public synchronized void acquire() throws InterruptedIOException {
+		while (inFlight >= (int) limit) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting to send a request to " + host);
+			}
+		}
+		inFlight++;
+	}
+
+	/**
+	 * Report the end of a request that was started after {@link #acquire()}.
+	 *
+	 * @param outcome
+	 * @param latencyMillis time until the response headers arrived, or -1 if the request isn't a single tile
+	 */
+	public synchronized void release(Outcome outcome, long latencyMillis) {
+		inFlight--;
+		long now = System.currentTimeMillis();
+		switch (outcome) {
+			case OVERLOADED:
+				decrease(0.5, now);
+				break;
+			case SUCCESS:
+				if (latencyMillis >= 0) {
+					if (baselineMillis < 0 || latencyMillis < baselineMillis)
+						baselineMillis = latencyMillis;
+					else
+						// Let the baseline drift up slowly, the best response time may not be reachable anymore
+						baselineMillis += 0.01 * (latencyMillis - baselineMillis);
+					if (latencyMillis > LATENCY_TOLERANCE * baselineMillis + 50) {
+						decrease(0.9, now);
+						break;
+					}
+				}
+				limit = Math.min(maxLimit, limit + 1.0 / limit);
+				break;
+			default:
+				break;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Current number of requests that may be in flight at the same time.
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	private void decrease(double factor, long now) {
+		// Responses to requests sent before the previous decrease still reflect the old limit, don't count them twice
+		if (now - lastDecrease < Math.max(100, baselineMillis))
+			return;
+		lastDecrease = now;
+		double previous = limit;
+		limit = Math.max(1, limit * factor);
+		if ((int) previous != (int) limit)
+			logger.debug("Concurrency limit for {} reduced to {}", host, (int) limit);
+	}
+}
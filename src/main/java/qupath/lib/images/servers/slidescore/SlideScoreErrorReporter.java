@@ -0,0 +1,111 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+
+/**
+ * Tells the user about errors and results of the Slide Score server and commands.
+ * <p>
+ * Without a GUI everything is logged and questions are not asked, so servers and commands can run headless, e.g. from
+ * {@code QuPath script} on a cluster. {@link SlideScoreExtension} installs a reporter that shows dialogs when QuPath
+ * runs with its GUI.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public interface SlideScoreErrorReporter {
+
+	/**
+	 * Show an error
+	 */
+	void showError(String title, String message);
+
+	/**
+	 * Show a message the user has to read
+	 */
+	void showMessage(String title, String message);
+
+	/**
+	 * Show a message that doesn't need attention, such as the result of a command
+	 */
+	void showNotification(String title, String message);
+
+	/**
+	 * Let the user pick one of the choices
+	 *
+	 * @return the choice, or null if the user cancelled or can't be asked
+	 */
+	String showChoiceDialog(String title, String message, String[] choices, String defaultChoice);
+
+	/**
+	 * Open a page in the user's browser
+	 */
+	void browse(URI uri);
+
+	/**
+	 * Tell the user a command needs an open image
+	 */
+	default void showNoImageError(String title) {
+		showError(title, "No image is available!");
+	}
+
+	/**
+	 * Get the reporter used by all Slide Score servers and commands
+	 */
+	static SlideScoreErrorReporter getInstance() {
+		return Holder.instance;
+	}
+
+	/**
+	 * Replace the reporter, e.g. to collect the errors of a batch job
+	 */
+	static void setInstance(SlideScoreErrorReporter reporter) {
+		Holder.instance = reporter == null ? new LoggingReporter() : reporter;
+	}
+
+	/**
+	 * Reporter for running without a GUI
+	 */
+	class LoggingReporter implements SlideScoreErrorReporter {
+
+		private static final Logger logger = LoggerFactory.getLogger(SlideScoreErrorReporter.class);
+
+		@Override
+		public void showError(String title, String message) {
+			logger.error("{}: {}", title, message);
+		}
+
+		@Override
+		public void showMessage(String title, String message) {
+			logger.warn("{}: {}", title, message);
+		}
+
+		@Override
+		public void showNotification(String title, String message) {
+			logger.info("{}: {}", title, message);
+		}
+
+		@Override
+		public String showChoiceDialog(String title, String message, String[] choices, String defaultChoice) {
+			logger.warn("{}: can't ask '{}' without a GUI, continuing as if cancelled", title, message);
+			return null;
+		}
+
+		@Override
+		public void browse(URI uri) {
+			logger.warn("Open {} in a browser", uri);
+		}
+	}
+
+	/**
+	 * Keeps the current reporter, interfaces can't have mutable static fields
+	 */
+	class Holder {
+		private static volatile SlideScoreErrorReporter instance = new LoggingReporter();
+
+		private Holder() {
+		}
+	}
+}
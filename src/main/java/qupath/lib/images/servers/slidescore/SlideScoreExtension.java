@@ -23,6 +23,10 @@ public class SlideScoreExtension implements QuPathExtension {
 
         @Override
         public void installExtension(QuPathGUI qupath) {
+            // Without this servers and commands only log their errors, as when QuPath runs headless
+            SlideScoreErrorReporter.setInstance(new SlideScoreGuiErrorReporter());
+            SlideScoreImageServer.setProjectSupplier(qupath::getProject);
+            SlideScoreImageServer.setViewerCheck(server -> qupath.getAllViewers().stream().anyMatch(viewer -> viewer.getServer() == server));
 
             var actionWriter = ActionTools.createAction(new SlideScoreImportTMAsCommand(qupath), "Import TMA Positions from Slide Score");
             actionWriter.setLongText("Import positions of TMA cores on a TMA slide from the original Slide Score slide");
@@ -81,6 +85,25 @@ public class SlideScoreExtension implements QuPathExtension {
                     qupath.getMenu("Objects", true),
                     actionWriter3);
 
+            var actionWriter4 = ActionTools.createAction(new SlideScoreMirrorCommand(qupath), "Mirror slide from Slide Score");
+            actionWriter4.setLongText("Download the whole Slide Score slide to a local mirror so it can be analysed without streaming");
+            actionWriter4.disabledProperty().bind(
+                    Bindings.createObjectBinding(
+                            new Callable<Boolean>() {
+                                @Override
+                                public Boolean call() throws Exception {
+                                    var data = qupath.getImageData();
+                                    if (data == null) return true;
+                                    ImageServer<BufferedImage> server = data.getServer();
+                                    return !(server instanceof SlideScoreImageServer);
+                                }
+                            },
+                            qupath.imageDataProperty()
+                    ));
+            MenuTools.addMenuItems(
+                    qupath.getMenu("File", true),
+                    actionWriter4);
+
         }
 
         @Override
@@ -0,0 +1,62 @@
+package qupath.lib.images.servers.slidescore;
+
+import javafx.application.Platform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.gui.dialogs.Dialogs;
+
+import java.awt.Desktop;
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * Shows errors and messages of Slide Score servers and commands in QuPath's GUI, see {@link SlideScoreErrorReporter}.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreGuiErrorReporter implements SlideScoreErrorReporter {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlideScoreGuiErrorReporter.class);
+
+	@Override
+	public void showError(String title, String message) {
+		runOnApplicationThread(() -> Dialogs.showErrorMessage(title, message));
+	}
+
+	@Override
+	public void showMessage(String title, String message) {
+		runOnApplicationThread(() -> Dialogs.showMessageDialog(title, message));
+	}
+
+	@Override
+	public void showNotification(String title, String message) {
+		runOnApplicationThread(() -> Dialogs.showInfoNotification(title, message));
+	}
+
+	@Override
+	public void showNoImageError(String title) {
+		runOnApplicationThread(() -> Dialogs.showNoImageError(title));
+	}
+
+	@Override
+	public String showChoiceDialog(String title, String message, String[] choices, String defaultChoice) {
+		return Dialogs.showChoiceDialog(title, message, choices, defaultChoice);
+	}
+
+	@Override
+	public void browse(URI uri) {
+		try {
+			Desktop.getDesktop().browse(uri);
+		} catch (IOException | UnsupportedOperationException e) {
+			logger.warn("Unable to open {} in a browser: {}", uri, e.getLocalizedMessage());
+		}
+	}
+
+	private static void runOnApplicationThread(Runnable runnable) {
+		if (Platform.isFxApplicationThread())
+			runnable.run();
+		else
+			Platform.runLater(runnable);
+	}
+}
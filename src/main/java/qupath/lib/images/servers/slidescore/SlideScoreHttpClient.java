@@ -0,0 +1,301 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * HTTP transport shared by all Slide Score servers.
+ * <p>
+ * Uses a single pooled {@link HttpClient} so connections are kept alive and multiplexed over HTTP/2 where the server supports it,
+ * with configurable timeouts. The number of concurrent requests per host adapts to the server load
+ * (see {@link SlideScoreConcurrencyLimiter}), requests that are refused because the server is overloaded are retried
+ * with backoff instead of failing.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreHttpClient {
+
+	/**
+	 * Thrown when the server answers with an unsuccessful status code.
+	 * The message has the same form as the one from {@link java.net.HttpURLConnection}.
+	 */
+	public static class HttpStatusException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int statusCode;
+
+		public HttpStatusException(int statusCode, URI uri) {
+			super("Server returned HTTP response code: " + statusCode + " for URL: " + uri);
+			this.statusCode = statusCode;
+		}
+
+		public int getStatusCode() {
+			return statusCode;
+		}
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(SlideScoreHttpClient.class);
+
+	private static SlideScoreHttpClient instance;
+
+	private final HttpClient client;
+	private final Map<String, SlideScoreConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+	private final SlideScoreRequestHedger hedger = new SlideScoreRequestHedger();
+	private final SlideScoreResponseCache responseCache = new SlideScoreResponseCache();
+
+	SlideScoreHttpClient() {
+		client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.connectTimeout(Duration.ofSeconds(SlideScoreSettings.getConnectTimeoutSeconds()))
+				.build();
+	}
+
+	/**
+	 * Get the client shared by all Slide Score servers.
+	 */
+	public static synchronized SlideScoreHttpClient getInstance() {
+		if (instance == null)
+			instance = new SlideScoreHttpClient();
+		return instance;
+	}
+
+	/**
+	 * GET a resource as bytes
+	 *
+	 * @param uri
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] getBytes(URI uri) throws IOException {
+		return getBytes(uri, false);
+	}
+
+	/**
+	 * GET a resource as bytes
+	 *
+	 * @param uri
+	 * @param singleTile whether the resource is a single tile, only their response times are used to detect congestion
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] getBytes(URI uri, boolean singleTile) throws IOException {
+		return send(newRequest(uri).GET().build(), HttpResponse.BodyHandlers.ofByteArray(), true, singleTile).body();
+	}
+
+	/**
+	 * GET a single tile as bytes, sending a second copy of the request if it is much slower than usual tiles.
+	 * See {@link SlideScoreRequestHedger}. Resources of other sizes take longer and must use {@link #getBytes(URI, boolean)}.
+	 *
+	 * @param uri
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] getBytesHedged(URI uri) throws IOException {
+		return hedger.send(uri, () -> getBytes(uri, true));
+	}
+
+	/**
+	 * GET a resource as text, compressed with gzip if the server supports it
+	 *
+	 * @param uri
+	 * @return
+	 * @throws IOException
+	 */
+	public String getString(URI uri) throws IOException {
+		var request = newRequest(uri).header("Accept-Encoding", "gzip").GET().build();
+		return decodeText(send(request, HttpResponse.BodyHandlers.ofByteArray(), false, false));
+	}
+
+	/**
+	 * GET a resource as text through the {@link SlideScoreResponseCache}.
+	 * <p>
+	 * A cached copy younger than maxAgeMillis is returned without a request. An older one is revalidated with
+	 * If-None-Match or If-Modified-Since, and returned if the server answers 304 Not Modified.
+	 *
+	 * @param uri
+	 * @param maxAgeMillis how long a response is used without asking the server, 0 to always revalidate
+	 * @return
+	 * @throws IOException
+	 */
+	public String getStringCached(URI uri, long maxAgeMillis) throws IOException {
+		var cached = responseCache.get(uri);
+		if (cached != null && cached.getAgeMillis() < maxAgeMillis)
+			return cached.getBody();
+		var builder = newRequest(uri).header("Accept-Encoding", "gzip").GET();
+		if (cached != null) {
+			if (cached.getETag() != null)
+				builder.header("If-None-Match", cached.getETag());
+			if (cached.getLastModified() != null)
+				builder.header("If-Modified-Since", cached.getLastModified());
+		}
+		var response = send(builder.build(), HttpResponse.BodyHandlers.ofByteArray(), false, false);
+		if (response.statusCode() == 304 && cached != null) {
+			responseCache.put(uri, cached.revalidated());
+			return cached.getBody();
+		}
+		String body = decodeText(response);
+		var entry = new SlideScoreResponseCache.Entry(body, response.headers().firstValue("ETag").orElse(null),
+				response.headers().firstValue("Last-Modified").orElse(null), System.currentTimeMillis());
+		// Without a validator the response can only be used until it is too old
+		if (entry.isRevalidatable() || maxAgeMillis > 0)
+			responseCache.put(uri, entry);
+		return body;
+	}
+
+	/**
+	 * Forget the cached response of a resource, e.g. after a request that changed it
+	 */
+	public void invalidate(URI uri) {
+		responseCache.remove(uri);
+	}
+
+	private static String decodeText(HttpResponse<byte[]> response) throws IOException {
+		byte[] body = response.body();
+		if (response.headers().firstValue("Content-Encoding").map(e -> e.equalsIgnoreCase("gzip")).orElse(false)) {
+			try (var stream = new GZIPInputStream(new ByteArrayInputStream(body))) {
+				body = stream.readAllBytes();
+			}
+		}
+		Charset charset = StandardCharsets.UTF_8;
+		var contentType = response.headers().firstValue("Content-Type").orElse("");
+		int index = contentType.toLowerCase().indexOf("charset=");
+		if (index >= 0) {
+			try {
+				charset = Charset.forName(contentType.substring(index + "charset=".length()).split(";")[0].trim().replace("\"", ""));
+			} catch (IllegalArgumentException e) {
+				// Unknown charset, Slide Score sends UTF-8
+			}
+		}
+		return new String(body, charset);
+	}
+
+	/**
+	 * POST url encoded form data and return the response as text
+	 *
+	 * @param uri
+	 * @param args form fields
+	 * @return
+	 * @throws IOException
+	 */
+	public String postForm(URI uri, Map<String, String> args) throws IOException {
+		StringBuilder postData = new StringBuilder();
+		for (var entry : args.entrySet()) {
+			postData.append(entry.getKey())
+					.append('=')
+					.append(URLEncoder.encode(entry.getValue(), StandardCharsets.UTF_8))
+					.append('&');
+		}
+		var request = newRequest(uri)
+				.header("Content-Type", "application/x-www-form-urlencoded")
+				.POST(HttpRequest.BodyPublishers.ofString(postData.toString(), StandardCharsets.UTF_8))
+				.build();
+		return send(request, HttpResponse.BodyHandlers.ofString(), false, false).body();
+	}
+
+	private static HttpRequest.Builder newRequest(URI uri) {
+		return HttpRequest.newBuilder(uri)
+				.timeout(Duration.ofSeconds(SlideScoreSettings.getReadTimeoutSeconds()));
+	}
+
+	/**
+	 * Send a request within the concurrency limit of its host
+	 *
+	 * @param retryOverload whether 503s and timeouts may be retried, i.e. the request has no side effects
+	 * @param singleTile whether the response time is comparable to that of other tiles, see {@link SlideScoreConcurrencyLimiter}
+	 */
+	private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler, boolean retryOverload, boolean singleTile) throws IOException {
+		String host = request.uri().getHost() == null ? "" : request.uri().getHost();
+		var limiter = limiters.computeIfAbsent(host,
+				h -> new SlideScoreConcurrencyLimiter(h, SlideScoreSettings.getMaxConnectionsPerHost()));
+		for (int attempt = 0; ; attempt++) {
+			limiter.acquire();
+			long start = System.currentTimeMillis();
+			long[] headersReceived = { 0 };
+			var outcome = SlideScoreConcurrencyLimiter.Outcome.IGNORED;
+			HttpResponse<T> response = null;
+			IOException error = null;
+			try {
+				response = client.send(request, info -> {
+					headersReceived[0] = System.currentTimeMillis();
+					return handler.apply(info);
+				});
+				int status = response.statusCode();
+				if (status == 429 || status == 503)
+					outcome = SlideScoreConcurrencyLimiter.Outcome.OVERLOADED;
+				else if (status / 100 == 2 || status == 304)
+					outcome = SlideScoreConcurrencyLimiter.Outcome.SUCCESS;
+			} catch (HttpTimeoutException e) {
+				outcome = SlideScoreConcurrencyLimiter.Outcome.OVERLOADED;
+				error = e;
+			} catch (IOException e) {
+				error = e;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Request to " + request.uri() + " was interrupted");
+			} finally {
+				long latency = (headersReceived[0] > 0 ? headersReceived[0] : System.currentTimeMillis()) - start;
+				limiter.release(outcome, singleTile ? latency : -1);
+				// Only this attempt, without waiting for the limiter or retries, tells how slow the server is
+				if (singleTile && outcome == SlideScoreConcurrencyLimiter.Outcome.SUCCESS)
+					hedger.addResponseTime(request.uri(), latency);
+			}
+
+			// A 429 means the request wasn't processed so it is always safe to send again,
+			// 503s and timeouts are only retried for requests without side effects
+			boolean isTooManyRequests = response != null && response.statusCode() == 429;
+			if (outcome == SlideScoreConcurrencyLimiter.Outcome.OVERLOADED && (retryOverload || isTooManyRequests)
+					&& attempt < SlideScoreSettings.getMaxRetries()) {
+				waitBeforeRetry(request, response, attempt);
+				continue;
+			}
+			if (error != null)
+				throw error;
+			// 304 is only sent for conditional requests, the caller uses its cached copy
+			if (response.statusCode() / 100 != 2 && response.statusCode() != 304)
+				throw new HttpStatusException(response.statusCode(), request.uri());
+			return response;
+		}
+	}
+
+	private static void waitBeforeRetry(HttpRequest request, HttpResponse<?> response, int attempt) throws InterruptedIOException {
+		long delay = Math.min(10_000, 250L << attempt);
+		if (response != null) {
+			try {
+				var retryAfter = response.headers().firstValue("Retry-After");
+				if (retryAfter.isPresent())
+					delay = Math.min(60_000, Long.parseLong(retryAfter.get().trim()) * 1000);
+			} catch (NumberFormatException e) {
+				// Retry-After can also be a date, just use the backoff
+			}
+		}
+		// Spread out the retries of requests that failed together
+		delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+		logger.debug("Server is overloaded, retrying {} in {} ms", request.uri(), delay);
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry " + request.uri());
+		}
+	}
+}
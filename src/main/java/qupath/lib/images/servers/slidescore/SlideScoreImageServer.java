@@ -1,13 +1,11 @@
 package qupath.lib.images.servers.slidescore;
 
+import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
 import io.tus.java.client.ProtocolException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import qupath.lib.gui.QuPathGUI;
-import qupath.lib.gui.dialogs.Dialogs;
-import javafx.application.Platform;
 import qupath.lib.images.servers.*;
 import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
 import qupath.lib.io.GsonTools;
@@ -15,14 +13,20 @@ import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjectReader;
 import qupath.lib.projects.Project;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.*;
 import java.net.*;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import io.tus.java.client.*;
 
@@ -39,6 +43,30 @@ import io.tus.java.client.*;
 public class SlideScoreImageServer extends AbstractTileableImageServer implements PathObjectReader {
 
 	private static final Logger logger = LoggerFactory.getLogger(SlideScoreImageServer.class);
+	// Tile downloads in progress, shared by all servers
+	private static final Map<SlideScoreTileKey, CompletableFuture<byte[]>> inFlightTiles = new ConcurrentHashMap<>();
+	// Tiles of coalesced regions in progress, by the key of each tile
+	private static final Map<SlideScoreTileKey, CompletableFuture<BufferedImage>> inFlightRegionTiles = new ConcurrentHashMap<>();
+	private static volatile Supplier<Project<BufferedImage>> projectSupplier = () -> null;
+	private static volatile Predicate<ImageServer<BufferedImage>> viewerCheck = server -> false;
+	private static final int DEFAULT_JPEG_QUALITY = 90;
+	// Anno2 records of unfinished uploads by fingerprint, a partial upload can only be finished for its own record
+	private static final Map<String, Anno2Record> anno2Records = new ConcurrentHashMap<>();
+
+	/**
+	 * The anno2 record an upload of a large annotation is for
+	 */
+	private static class Anno2Record {
+		final String uploadToken;
+		final String apiToken;
+		final String annoUUID;
+
+		Anno2Record(String uploadToken, String apiToken, String annoUUID) {
+			this.uploadToken = uploadToken;
+			this.apiToken = apiToken;
+			this.annoUUID = annoUUID;
+		}
+	}
 	//only log it once
 	private boolean HasRequestBeenLogged = false;
 	private ImageServerMetadata originalMetadata;
@@ -46,6 +74,10 @@ public class SlideScoreImageServer extends AbstractTileableImageServer implement
 	private Color backgroundColor;
 	private URI uri;
 	private String[] args;
+	private String slideId;
+	private SlideScoreMirror mirror;
+	private final SlideScoreTileBatcher tileBatcher = new SlideScoreTileBatcher(this::readTiles);
+	private final SlideScoreTilePrefetcher prefetcher = new SlideScoreTilePrefetcher(this);
 
 
 
@@ -59,136 +91,172 @@ public class SlideScoreImageServer extends AbstractTileableImageServer implement
 	public SlideScoreImageServer(String path, String...args) throws IOException, URISyntaxException {
 		super();
 
-		URL url = new URL(path);
 		uri = new URI(path);
-		Project<BufferedImage> project = QuPathGUI.getInstance().getProject();
+		slideId = SlideScoreTileKey.getSlideId(uri);
+		Project<BufferedImage> project = projectSupplier.get();
 		if (project != null) {
 			long createdOn = project.getCreationTimestamp();
-			if (new Date(createdOn*1000).toInstant().atZone(ZoneId.systemDefault()).toLocalDate().plusYears(1).compareTo(LocalDate.now()) < 0) {
+			if (new Date(createdOn*1000).toInstant().atZone(ZoneId.systemDefault()).toLocalDate().plusYears(1).compareTo(LocalDate.now()) < 0)
 				tokenExpired(path);
-				return;
-			}
 		}
-		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		// Opened after the checks that throw, the mirror must be closed if the constructor fails
+		mirror = SlideScoreMirror.open(slideId);
+		if (mirror != null)
+			logger.info("Reading {} from the local mirror", slideId);
 		try {
-			con.setRequestMethod("GET");
-			BufferedReader in = new BufferedReader(
-					new InputStreamReader(con.getInputStream()));
-			try {
-				String inputLine;
-				StringBuffer content = new StringBuffer();
-				while ((inputLine = in.readLine()) != null) {
-					content.append(inputLine);
-				}
-				try {
-					var json = JsonParser.parseString(content.toString()).getAsJsonObject();
-					/*
-						public long Level0TileWidth;
-						public long Level0TileHeight;
-						public int OSDTileSize;
-						public double MppX;
-						public double MppY;
-						public double ObjectivePower;
-						public string BackgroundColor;
-						public int LevelCount;
-						public long Level0Width;
-						public long Level0Height;
-						public double[] Downsamples;
-					*/
-					// Try to get a background color
-					try {
-						String bg = json.get("BackgroundColor").getAsString();
-						if (bg != null) {
-							if (!bg.startsWith("#"))
-								bg = "#" + bg;
-							backgroundColor = Color.decode(bg);
-						}
-					} catch (Exception e) {
-						backgroundColor = null;
-						logger.debug("Unable to find background color: {}", e.getLocalizedMessage());
-					}
-
-					var level0TileWidth = json.get("Level0TileWidth").getAsInt();
-					var levelCount = json.get("LevelCount").getAsInt();
-					var resolutionBuilder = new ImageServerMetadata.ImageResolutionLevel.Builder(json.get("Level0Width").getAsInt(), json.get("Level0Height").getAsInt());
-					var xJson = json.get("LevelWidths").getAsJsonArray();
-					var yJson = json.get("LevelHeights").getAsJsonArray();
-					for (var i=0;i<levelCount;i++) {
-						var w = xJson.get(i).getAsInt();
-						var h = yJson.get(i).getAsInt();
-						resolutionBuilder.addLevel(w, h);
-					}
-					var levels = resolutionBuilder.build();
-					originalMetadata = new ImageServerMetadata.Builder(getClass(),
-							path, json.get("Level0Width").getAsInt(), json.get("Level0Height").getAsInt()).
-							channels(ImageChannel.getDefaultRGBChannels()). // Assume 3 channels (RGB)
-							name(json.get("FileName").getAsString()).
-							rgb(true).
-							pixelType(PixelType.UINT8).
-							preferredTileSize(json.get("Level0TileWidth").getAsInt(), json.get("Level0TileHeight").getAsInt()).
-							pixelSizeMicrons(json.get("MppX").getAsDouble(), json.get("MppY").getAsDouble()).
-							magnification(json.get("ObjectivePower").getAsDouble()).
-							levels(levels).
-							build();
-					logger.info("Opened Slide Score image and created metadata with level0tilewidth "+level0TileWidth+" v"+SlideScoreImageServerBuilder.version);
-				}
-				catch (JsonSyntaxException ex) {
-					throw new IOException("Parsing of metadata failed", ex);
-				}
-			}
-			finally {
-				in.close();
-			}
+			var json = readMetadataJson(uri);
+			backgroundColor = getBackgroundColor(json);
+			originalMetadata = createMetadata(json, path);
+			logger.info("Opened Slide Score image and created metadata with level0tilewidth "+originalMetadata.getPreferredTileWidth()+" v"+SlideScoreImageServerBuilder.version);
 		}
 		catch (IOException ex) {
-			if (ex.getMessage().indexOf("503") != -1) {
-				Platform.runLater(() -> Dialogs.showMessageDialog("Unable to open the slide", "We can't open this slide on the server. Either it's not there, or the link you've used has expired. Try requesting a new link by opening the study in your browser and clicking the Open in QuPath button."));
-				return;
+			// Fail instead of creating a server without metadata
+			if (mirror != null) {
+				try {
+					mirror.close();
+				} catch (IOException e) {
+					ex.addSuppressed(e);
+				}
 			}
+			showIfSlideUnavailable(ex);
 			throw ex;
 		}
-		finally {
-			con.disconnect();
+	}
+
+	/**
+	 * Read the metadata of a slide, from its mirror or the metadata cache if possible
+	 *
+	 * @param uri link to the SlideScoreMetadata.json
+	 * @return
+	 * @throws IOException
+	 */
+	static JsonObject readMetadataJson(URI uri) throws IOException {
+		String content = null;
+		try (var slideMirror = SlideScoreMirror.open(SlideScoreTileKey.getSlideId(uri))) {
+			if (slideMirror != null)
+				content = slideMirror.getMetadataJson();
 		}
+		if (content == null)
+			content = SlideScoreMetadataCache.getInstance().getMetadataJson(uri);
+		try {
+			return JsonParser.parseString(content).getAsJsonObject();
+		}
+		catch (JsonSyntaxException | IllegalStateException ex) {
+			SlideScoreMetadataCache.getInstance().invalidate(uri);
+			throw new IOException("Parsing of metadata failed", ex);
+		}
+	}
 
+	/**
+	 * Create QuPath's metadata from the SlideScoreMetadata.json
+	 *
+	 * @param json
+	 * @param path
+	 * @return
+	 */
+	static ImageServerMetadata createMetadata(JsonObject json, String path) {
+		/*
+			public long Level0TileWidth;
+			public long Level0TileHeight;
+			public int OSDTileSize;
+			public double MppX;
+			public double MppY;
+			public double ObjectivePower;
+			public string BackgroundColor;
+			public int LevelCount;
+			public long Level0Width;
+			public long Level0Height;
+			public double[] Downsamples;
+		*/
+		var levelCount = json.get("LevelCount").getAsInt();
+		var resolutionBuilder = new ImageServerMetadata.ImageResolutionLevel.Builder(json.get("Level0Width").getAsInt(), json.get("Level0Height").getAsInt());
+		var xJson = json.get("LevelWidths").getAsJsonArray();
+		var yJson = json.get("LevelHeights").getAsJsonArray();
+		for (var i=0;i<levelCount;i++) {
+			var w = xJson.get(i).getAsInt();
+			var h = yJson.get(i).getAsInt();
+			resolutionBuilder.addLevel(w, h);
+		}
+		var levels = resolutionBuilder.build();
+		return new ImageServerMetadata.Builder(SlideScoreImageServer.class,
+				path, json.get("Level0Width").getAsInt(), json.get("Level0Height").getAsInt()).
+				channels(ImageChannel.getDefaultRGBChannels()). // Assume 3 channels (RGB)
+				name(json.get("FileName").getAsString()).
+				rgb(true).
+				pixelType(PixelType.UINT8).
+				preferredTileSize(json.get("Level0TileWidth").getAsInt(), json.get("Level0TileHeight").getAsInt()).
+				pixelSizeMicrons(json.get("MppX").getAsDouble(), json.get("MppY").getAsDouble()).
+				magnification(json.get("ObjectivePower").getAsDouble()).
+				levels(levels).
+				build();
+	}
 
+	private static Color getBackgroundColor(JsonObject json) {
+		// Try to get a background color
+		try {
+			String bg = json.get("BackgroundColor").getAsString();
+			if (bg != null) {
+				if (!bg.startsWith("#"))
+					bg = "#" + bg;
+				return Color.decode(bg);
+			}
+		} catch (Exception e) {
+			logger.debug("Unable to find background color: {}", e.getLocalizedMessage());
+		}
+		return null;
 	}
 
-	private void tokenExpired(String path) throws IOException, URISyntaxException {
-		Dialogs.showMessageDialog("Slide Score access token expired", "This project file contains slide links that have expired access control tokens. We will open a page where you can upload the project file and get it back with renewed access tokens so that you can keep using the project file. QuPath will close now.");
+	/**
+	 * Tell the user when the server refuses to open the slide
+	 *
+	 * @param ex error from opening the slide
+	 * @return true if the user was told, false if the error should be handled by the caller
+	 */
+	static boolean showIfSlideUnavailable(IOException ex) {
+		if (ex.getMessage() != null && ex.getMessage().indexOf("503") != -1) {
+			SlideScoreErrorReporter.getInstance().showMessage("Unable to open the slide", "We can't open this slide on the server. Either it's not there, or the link you've used has expired. Try requesting a new link by opening the study in your browser and clicking the Open in QuPath button.");
+			return true;
+		}
+		return false;
+	}
+
+	private void tokenExpired(String path) throws IOException {
 		String server = path.substring(0, path.indexOf("/i/"));
-		Desktop.getDesktop().browse(new URL(server + "/Studies/RenewProject").toURI());
-		System.exit(0);
+		var reporter = SlideScoreErrorReporter.getInstance();
+		reporter.showMessage("Slide Score access token expired", "This project file contains slide links that have expired access control tokens. We will open a page where you can upload the project file and get it back with renewed access tokens so that you can keep using the project file.");
+		reporter.browse(URI.create(server + "/Studies/RenewProject"));
+		throw new SlideScoreTokenExpiredException(server);
+	}
+
+	/**
+	 * Set where servers find the project they are opened in, to check whether its access tokens have expired.
+	 * The GUI uses its current project, headless commands the project they process.
+	 *
+	 * @param supplier supplier of the current project, it may supply null
+	 */
+	public static void setProjectSupplier(Supplier<Project<BufferedImage>> supplier) {
+		projectSupplier = supplier == null ? () -> null : supplier;
+	}
+
+	/**
+	 * Set how servers find out whether they are shown in a viewer. Only the tile reads of a viewer are used to read
+	 * ahead, reads of scripts, batch commands or mirroring aren't. Without a GUI nothing is read ahead.
+	 *
+	 * @param isViewed whether a server is shown in a viewer
+	 */
+	public static void setViewerCheck(Predicate<ImageServer<BufferedImage>> isViewed) {
+		viewerCheck = isViewed == null ? server -> false : isViewed;
 	}
 
 	public SlideScoreTmaPositions getTMAPositions() throws IOException {
-		var url = new URL(uri.toString().replace("SlideScoreMetadata", "TMAPositions"));
-		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		String content = SlideScoreHttpClient.getInstance().getString(getApiUri("TMAPositions"));
 		try {
-			con.setRequestMethod("GET");
-			BufferedReader in = new BufferedReader(
-					new InputStreamReader(con.getInputStream()));
-			try {
-				String inputLine;
-				StringBuffer content = new StringBuffer();
-				while ((inputLine = in.readLine()) != null) {
-					content.append(inputLine);
-				}
-				try {
-					var json = JsonParser.parseString(content.toString()).getAsJsonObject();
-					var positions = GsonTools.getInstance().fromJson(json, SlideScoreTmaPositions.class);
-					return positions;
-				}
-				catch (JsonSyntaxException ex) {
-					throw new IOException("Parsing of TMA positions failed", ex);
-				}
-			}
-			finally {
-				in.close();
-			}
+			var json = JsonParser.parseString(content).getAsJsonObject();
+			var positions = GsonTools.getInstance().fromJson(json, SlideScoreTmaPositions.class);
+			return positions;
 		}
-		finally {
-			con.disconnect();
+		catch (JsonSyntaxException ex) {
+			throw new IOException("Parsing of TMA positions failed", ex);
 		}
 	}
 
@@ -200,65 +268,32 @@ public class SlideScoreImageServer extends AbstractTileableImageServer implement
 	}
 
 	public SlideScoreAnswer[] getAnswers(String question, String email) throws IOException {
-		var url = new URL(uri.toString().replace("SlideScoreMetadata", "Answers"));
-		HttpURLConnection con = (HttpURLConnection) url.openConnection();
-		try {
-			con.setRequestMethod("GET");
-			BufferedReader in = new BufferedReader(
-					new InputStreamReader(con.getInputStream()));
-			try {
-				String inputLine;
-				ArrayList<SlideScoreAnswer> ret = new ArrayList<>();
-				while ((inputLine = in.readLine()) != null) {
-					var terms = inputLine.split(";");
-					var answer = new SlideScoreAnswer();
-					answer.question = terms[0];
-					answer.email = terms[1];
-					answer.value = terms.length > 2 ? terms[2] : "";
-					if (question != null && answer.question.compareToIgnoreCase(question) != 0)
-						continue;
-					if (email != null && answer.email.compareToIgnoreCase(email) != 0)
-						continue;
-					var color =  terms.length > 3 ? terms[3] : "";
-					if (color.startsWith("#"))
-						answer.color = Integer.parseInt(color.replaceFirst("#", ""), 16);
-					ret.add(answer);
-				}
-				return ret.toArray(new SlideScoreAnswer[0]);
-			}
-			finally {
-				in.close();
-			}
-		}
-		finally {
-			con.disconnect();
+		// Answers change, but an unchanged list only costs a 304
+		String content = SlideScoreHttpClient.getInstance().getStringCached(getApiUri("Answers"), 0);
+		ArrayList<SlideScoreAnswer> ret = new ArrayList<>();
+		for (var inputLine : (Iterable<String>) content.lines()::iterator) {
+			var terms = inputLine.split(";");
+			var answer = new SlideScoreAnswer();
+			answer.question = terms[0];
+			answer.email = terms[1];
+			answer.value = terms.length > 2 ? terms[2] : "";
+			if (question != null && answer.question.compareToIgnoreCase(question) != 0)
+				continue;
+			if (email != null && answer.email.compareToIgnoreCase(email) != 0)
+				continue;
+			var color =  terms.length > 3 ? terms[3] : "";
+			if (color.startsWith("#"))
+				answer.color = Integer.parseInt(color.replaceFirst("#", ""), 16);
+			ret.add(answer);
 		}
+		return ret.toArray(new SlideScoreAnswer[0]);
 	}
 
 
 	public String[] getQuestions() throws IOException {
-		var url = new URL(uri.toString().replace("SlideScoreMetadata", "Questions"));
-		HttpURLConnection con = (HttpURLConnection) url.openConnection();
-		try {
-			con.setRequestMethod("GET");
-			BufferedReader in = new BufferedReader(
-					new InputStreamReader(con.getInputStream()));
-			try {
-				String inputLine;
-				StringBuffer content = new StringBuffer();
-				ArrayList<String> qs = new ArrayList();
-				while ((inputLine = in.readLine()) != null) {
-					qs.add(inputLine);
-				}
-				return qs.toArray(new String[qs.size()]);
-			}
-			finally {
-				in.close();
-			}
-		}
-		finally {
-			con.disconnect();
-		}
+		String content = SlideScoreHttpClient.getInstance().getStringCached(getApiUri("Questions"),
+				SlideScoreSettings.getQuestionCacheSeconds() * 1000);
+		return content.lines().toArray(String[]::new);
 	}
 
 	public String[] getAnnotationQuestions() throws IOException {
@@ -287,98 +322,110 @@ public class SlideScoreImageServer extends AbstractTileableImageServer implement
 	}
 
 	private String makeRequest(String endUrl, Map<String, String> args) throws IOException {
-		var url = new URL(uri.toString().replace("SlideScoreMetadata", endUrl));
-		HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		String content = SlideScoreHttpClient.getInstance().postForm(getApiUri(endUrl), args);
+		// The request may have changed the answers
+		SlideScoreHttpClient.getInstance().invalidate(getApiUri("Answers"));
+		StringBuilder ret = new StringBuilder();
+		content.lines().forEach(line -> ret.append(line).append("\n"));
+		return ret.toString();
+	}
+
+	/**
+	 * Get the URI of another endpoint for this slide, using the same access token
+	 */
+	private URI getApiUri(String endUrl) {
+		return URI.create(uri.toString().replace("SlideScoreMetadata", endUrl));
+	}
+
+	public String postLargeAnnotation(String question, String answer, int tmaCoreId) throws IOException {
+		File temp = File.createTempFile("qupath_anno_", ".json.gz");
 		try {
-			con.setRequestMethod("POST");
-			StringBuilder postData = new StringBuilder();
-			for (var entry : args.entrySet()) {
-				postData.append(entry.getKey())
-						.append('=')
-						.append(URLEncoder.encode(entry.getValue(), "UTF-8"))
-						.append('&');
+			try (FileOutputStream output = new FileOutputStream(temp);
+				 Writer writer = new OutputStreamWriter(new java.util.zip.GZIPOutputStream(output), "UTF-8")) {
+				writer.write(answer);
 			}
-			byte[] postDataBytes = postData.toString().getBytes("UTF-8");
-
-			con.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-			con.setRequestProperty("Content-Length", String.valueOf(postDataBytes.length));
-			con.setDoOutput(true);
-			con.getOutputStream().write(postDataBytes);
-			BufferedReader in = new BufferedReader(
-					new InputStreamReader(con.getInputStream()));
+			return postLargeAnnotation(question, temp, tmaCoreId);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Upload a large answer from a file, see {@link SlideScoreAnswerBuffer}.
+	 * <p>
+	 * If uploading the same answer failed before in this session, the upload continues where it stopped, for the same
+	 * anno2 record.
+	 *
+	 * @param question
+	 * @param gzippedAnswer gzipped JSON of the answer
+	 * @param tmaCoreId core the answer is for, 0 for the whole slide
+	 * @return
+	 * @throws IOException
+	 */
+	public String postLargeAnnotation(String question, File gzippedAnswer, int tmaCoreId) throws IOException {
+		var store = SlideScoreUploadStore.getInstance();
+		String fingerprint = SlideScoreUploadStore.getFingerprint(slideId + "\n" + question + "\n" + tmaCoreId, gzippedAnswer);
+		var record = anno2Records.get(fingerprint);
+		if (record != null && store.contains(fingerprint)) {
+			logger.info("Resuming upload for anno2 record {} at {} bytes", record.annoUUID, store.getOffset(fingerprint));
 			try {
-				String inputLine;
-				StringBuffer content = new StringBuffer();
-				ArrayList<String> qs = new ArrayList();
-				while ((inputLine = in.readLine()) != null) {
-					content.append(inputLine);
-					content.append("\n");
-				}
-				return content.toString();
-			} finally {
-				in.close();
+				return uploadAnno2(question, gzippedAnswer, fingerprint, record);
+			} catch (IOException e) {
+				// The record or the partial upload may be gone from the server, only now a new record is needed
+				logger.warn("Resuming upload for anno2 record {} failed, starting a new upload: {}", record.annoUUID, e.getLocalizedMessage());
 			}
 		}
-		catch (UnsupportedEncodingException e) {
-			throw new IOException("Failed to encode",e);
-		}
-		finally {
-			con.disconnect();
-		}
+		// A partial upload without its record can't be finished, its tokens belong to another record
+		store.remove(fingerprint);
+		anno2Records.remove(fingerprint);
+		record = createAnno2(question, tmaCoreId);
+		anno2Records.put(fingerprint, record);
+		return uploadAnno2(question, gzippedAnswer, fingerprint, record);
 	}
 
-	public String postLargeAnnotation(String question, String answer, int tmaCoreId) throws IOException {
-		File temp = File.createTempFile("qupath_anno_", ".json.gz");
-		try (FileOutputStream output = new FileOutputStream(temp);
-			 Writer writer = new OutputStreamWriter(new java.util.zip.GZIPOutputStream(output), "UTF-8")) {
-			writer.write(answer);
-		}
-		var argsCreate = Map.of("question", question);
+	private Anno2Record createAnno2(String question, int tmaCoreId) throws IOException {
+		var argsCreate = new HashMap<String, String>();
+		argsCreate.put("question", question);
 		if (tmaCoreId > 0)
 			argsCreate.put("tmaCoreId", String.valueOf(tmaCoreId));
 		var anno2Ret = makeRequest("CreateAnno2", argsCreate);
-
-		String uploadToken, apiToken, annoUUID;
 		try {
 			var json = JsonParser.parseString(anno2Ret.toString()).getAsJsonObject();
 			String isSuccess = json.get("success").getAsString();
-			if (isSuccess != "true")
+			if (!"true".equals(isSuccess))
 				throw new IOException("Creating anno2 record failed: " + json.get("error").getAsString());
 
-			uploadToken = json.get("uploadToken").getAsString();
-			apiToken = json.get("apiToken").getAsString();
-			annoUUID = json.get("annoUUID").getAsString();
-			logger.info("Created anno2 record " + annoUUID);
-
+			var record = new Anno2Record(json.get("uploadToken").getAsString(),
+					json.get("apiToken").getAsString(), json.get("annoUUID").getAsString());
+			logger.info("Created anno2 record " + record.annoUUID);
+			return record;
 		} catch (JsonSyntaxException ex) {
 			throw new IOException("Creating anno2 record failed", ex);
 		}
+	}
+
+	private String uploadAnno2(String question, File gzippedAnswer, String fingerprint, Anno2Record record) throws IOException {
 		try {
-			TusClient client = new TusClient();
 			var appRoot = uri.toString().substring(0, uri.toString().indexOf("/i/"));
-			client.setUploadCreationURL(new URL(appRoot + "/files"));
-			TusUpload upload = new TusUpload(temp);
-			upload.setMetadata(Map.of(
-					"filename", temp.getName(),
-					"uploadtoken", uploadToken,
-					"apitoken", apiToken));
-			var uploader = client.createUpload(upload);
-			uploader.setChunkSize(5 * 1024 * 1024);
-			do {
-			} while (uploader.uploadChunk() > -1);
-			uploader.finish();
+			var upload = new SlideScoreResumableUpload(new URL(appRoot + "/files"), gzippedAnswer, fingerprint, Map.of(
+					"filename", gzippedAnswer.getName(),
+					"uploadtoken", record.uploadToken,
+					"apitoken", record.apiToken));
+			var uploadUrl = upload.upload();
 			logger.info("Uploaded data for large annotation for question "+question);
-			var uploadId = uploader.getUploadURL().getFile().replace("/files/","");
+			var uploadId = uploadUrl.getFile().replace("/files/","");
 
-			var anno2Finish = makeRequest("FinishAnno2Upload", Map.of("uploadToken", uploadToken, "uploadId", uploadId, "apiToken", apiToken));
+			var anno2Finish = makeRequest("FinishAnno2Upload", Map.of("uploadToken", record.uploadToken, "uploadId", uploadId, "apiToken", record.apiToken));
 			try {
 				var json = JsonParser.parseString(anno2Finish.toString()).getAsJsonObject();
 				String isSuccess = json.get("success").getAsString();
-				if (isSuccess != "true")
+				if (!"true".equals(isSuccess))
 					throw new IOException("Completing anno2 record failed: " + json.get("error").getAsString());
 			} catch (JsonSyntaxException ex) {
 				throw new IOException("Completing anno2 record failed", ex);
 			}
+			SlideScoreUploadStore.getInstance().remove(fingerprint);
+			anno2Records.remove(fingerprint);
 			logger.info("Completed anno2 for question "+question);
 			return anno2Finish;
 		} catch (ProtocolException e) {
@@ -439,37 +486,246 @@ public class SlideScoreImageServer extends AbstractTileableImageServer implement
 
 	@Override
 	protected BufferedImage readTile(TileRequest tileRequest) throws IOException {
-		int tileX = tileRequest.getImageX();
-		int tileY = tileRequest.getImageY();
-		int tileWidth = tileRequest.getTileWidth();
-		int tileHeight = tileRequest.getTileHeight();
+		// Failures are thrown once the retries are used up, a missing tile must not look like an empty one
+		var key = getTileKey(tileRequest);
+		if (mirror != null) {
+			byte[] bytes = mirror.getTile(key);
+			if (bytes != null)
+				return decodeTile(bytes, key.width, key.height);
+		}
+		if (viewerCheck.test(this))
+			prefetcher.observe(tileRequest);
+		var tileCache = SlideScoreTileCache.getInstance();
+		byte[] bytes = tileCache == null ? null : tileCache.get(key);
+		if (bytes != null)
+			return decodeTile(bytes, key.width, key.height);
+		return tileBatcher.readTile(tileRequest);
+	}
 
+	/**
+	 * Read tiles of one level that together form a rectangle, with a single request when there is more than one tile.
+	 * <p>
+	 * While a region is downloaded each of its tiles is registered, so reads of the same tiles join the download
+	 * instead of starting another one. Tiles another read is already downloading are joined in the same way.
+	 *
+	 * @param tiles
+	 * @return a tile image for each of the requests
+	 * @throws IOException
+	 */
+	BufferedImage[] readTiles(List<TileRequest> tiles) throws IOException {
+		if (tiles.size() == 1)
+			return new BufferedImage[] { readSingleTile(tiles.get(0)) };
+
+		var ret = new BufferedImage[tiles.size()];
+		var keys = new SlideScoreTileKey[tiles.size()];
+		// The tiles this read downloads, null for tiles another read is downloading
+		var claims = new ArrayList<CompletableFuture<BufferedImage>>(tiles.size());
+		boolean complete = true;
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = getTileKey(tiles.get(i));
+			var future = new CompletableFuture<BufferedImage>();
+			if (!inFlightTiles.containsKey(keys[i]) && inFlightRegionTiles.putIfAbsent(keys[i], future) == null) {
+				claims.add(future);
+			} else {
+				claims.add(null);
+				complete = false;
+			}
+		}
 		try {
-			String path = uri.toString().replace("SlideScoreMetadata.json","");
-			//'/<ID>raw/<int:level>/<int:x>_<int:y>/<int:width>_<int:height>.<format>'
-			path +=  "raw/"+tileRequest.getLevel()+"/"+tileX+"_"+tileY+"/"+tileWidth+"_"+tileHeight+".jpeg";
-			if (!HasRequestBeenLogged) {
-				logger.info("Requesting path "+path);
-				HasRequestBeenLogged = true;
+			if (complete) {
+				readRegion(tiles, ret);
+			} else {
+				// Part of the region is being read already, read the rest tile by tile
+				for (int i = 0; i < keys.length; i++) {
+					if (claims.get(i) != null)
+						ret[i] = downloadTileImage(keys[i]);
+				}
 			}
+			for (int i = 0; i < keys.length; i++) {
+				var claim = claims.get(i);
+				if (claim != null) {
+					claim.complete(ret[i]);
+					inFlightRegionTiles.remove(keys[i], claim);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// Unregister first, so the reads that joined read the tiles on their own
+			for (int i = 0; i < keys.length; i++) {
+				var claim = claims.get(i);
+				if (claim != null) {
+					inFlightRegionTiles.remove(keys[i], claim);
+					claim.completeExceptionally(e);
+				}
+			}
+			throw e;
+		}
+		for (int i = 0; i < ret.length; i++) {
+			if (claims.get(i) == null)
+				ret[i] = readSingleTile(tiles.get(i));
+		}
+		return ret;
+	}
 
-			BufferedImage img = ImageIO.read(new URL(path));
-			BufferedImage img2 = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
-			Graphics2D g2d = img2.createGraphics();
-			if (backgroundColor != null) {
-				g2d.setColor(backgroundColor);
-				g2d.fillRect(0, 0, tileWidth, tileHeight);
+	/**
+	 * Read a single tile, joining a region that contains it if one is being downloaded
+	 */
+	private BufferedImage readSingleTile(TileRequest tile) throws IOException {
+		var key = getTileKey(tile);
+		var region = inFlightRegionTiles.get(key);
+		if (region != null) {
+			try {
+				return region.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for tile " + key);
+			} catch (ExecutionException e) {
+				// The region failed, the tile may still be readable on its own
+				logger.debug("Region with tile {} failed, reading the tile on its own", key);
 			}
-			g2d.drawImage(img, 0, 0, tileWidth, tileHeight, null);
-			g2d.dispose();
-			return img2;
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
-		return null;
+		return downloadTileImage(key);
+	}
+
+	private BufferedImage downloadTileImage(SlideScoreTileKey key) throws IOException {
+		byte[] bytes = fetchTile(key);
+		var tileCache = SlideScoreTileCache.getInstance();
+		if (tileCache != null)
+			tileCache.put(key, bytes);
+		return decodeTile(bytes, key.width, key.height);
+	}
+
+	/**
+	 * Download the region covered by the tiles and split it into them
+	 */
+	private void readRegion(List<TileRequest> tiles, BufferedImage[] ret) throws IOException {
+		var tileCache = SlideScoreTileCache.getInstance();
+		var first = tiles.get(0);
+		int regionWidth = 0, regionHeight = 0;
+		for (var tile : tiles) {
+			regionWidth = Math.max(regionWidth, tile.getTileX() - first.getTileX() + tile.getTileWidth());
+			regionHeight = Math.max(regionHeight, tile.getTileY() - first.getTileY() + tile.getTileHeight());
+		}
+		var regionKey = new SlideScoreTileKey(slideId, first.getLevel(), first.getImageX(), first.getImageY(), regionWidth, regionHeight);
+		byte[] regionBytes = fetchTile(regionKey);
+		var region = decodeTile(regionBytes, regionWidth, regionHeight);
+		// The split tiles are cached as JPEGs of the same quality as the region
+		int quality = SlideScoreTileDecoder.getJpegQuality(regionBytes);
+		if (quality < 0)
+			quality = DEFAULT_JPEG_QUALITY;
+		int[] regionPixels = ((DataBufferInt) region.getRaster().getDataBuffer()).getData();
+
+		for (int i = 0; i < ret.length; i++) {
+			var tile = tiles.get(i);
+			int w = tile.getTileWidth();
+			int h = tile.getTileHeight();
+			int offsetX = tile.getTileX() - first.getTileX();
+			int offsetY = tile.getTileY() - first.getTileY();
+			var img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+			for (int y = 0; y < h; y++)
+				System.arraycopy(regionPixels, (offsetY + y) * regionWidth + offsetX, pixels, y * w, w);
+			ret[i] = img;
+			if (tileCache != null)
+				tileCache.putImageAsync(getTileKey(tile), img, quality);
+		}
+	}
+
+	/**
+	 * Whether a tile is being downloaded, on its own or as part of a region
+	 */
+	static boolean isInFlight(SlideScoreTileKey key) {
+		return inFlightTiles.containsKey(key) || inFlightRegionTiles.containsKey(key);
+	}
+
+	String getSlideId() {
+		return slideId;
+	}
+
+	/**
+	 * Whether the pixels are read from a local mirror rather than streamed from Slide Score
+	 */
+	public boolean isMirrored() {
+		return mirror != null;
+	}
+
+	SlideScoreTileKey getTileKey(TileRequest tileRequest) {
+		return new SlideScoreTileKey(slideId, tileRequest.getLevel(), tileRequest.getImageX(), tileRequest.getImageY(), tileRequest.getTileWidth(), tileRequest.getTileHeight());
+	}
+
+	/**
+	 * Decode a tile into an RGB image of the requested size
+	 */
+	private BufferedImage decodeTile(byte[] bytes, int tileWidth, int tileHeight) throws IOException {
+		return SlideScoreTileDecoder.decode(bytes, tileWidth, tileHeight, backgroundColor);
+	}
+
+	/**
+	 * Get the encoded bytes of a tile from the raw tile endpoint.
+	 * <p>
+	 * Concurrent requests for the same tile, from any server of the same slide, share a single download.
+	 *
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	byte[] fetchTile(SlideScoreTileKey key) throws IOException {
+		while (true) {
+			var future = new CompletableFuture<byte[]>();
+			var existing = inFlightTiles.putIfAbsent(key, future);
+			if (existing == null) {
+				try {
+					byte[] bytes = downloadTile(key);
+					future.complete(bytes);
+					return bytes;
+				} catch (IOException | RuntimeException e) {
+					future.completeExceptionally(e);
+					throw e;
+				} finally {
+					inFlightTiles.remove(key, future);
+				}
+			}
+			try {
+				return existing.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for tile " + key);
+			} catch (ExecutionException e) {
+				// The download we joined was cancelled (e.g. prefetching), that's no reason for this request to fail
+				if (e.getCause() instanceof InterruptedIOException)
+					continue;
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException("Reading tile " + key + " failed", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Download the encoded bytes of a tile from the raw tile endpoint
+	 */
+	private byte[] downloadTile(SlideScoreTileKey key) throws IOException {
+		String path = uri.toString().replace("SlideScoreMetadata.json","");
+		//'/<ID>raw/<int:level>/<int:x>_<int:y>/<int:width>_<int:height>.<format>'
+		path +=  "raw/"+key.level+"/"+key.x+"_"+key.y+"/"+key.width+"_"+key.height+".jpeg";
+		if (!HasRequestBeenLogged) {
+			logger.info("Requesting path "+path);
+			HasRequestBeenLogged = true;
+		}
+		// Regions take longer than tiles, they mustn't look like congestion or slow tiles
+		if (key.width <= getPreferredTileWidth() && key.height <= getPreferredTileHeight())
+			return SlideScoreHttpClient.getInstance().getBytesHedged(URI.create(path));
+		return SlideScoreHttpClient.getInstance().getBytes(URI.create(path), false);
 	}
 	
 	
+	@Override
+	public void close() throws Exception {
+		prefetcher.cancel();
+		if (mirror != null)
+			mirror.close();
+		super.close();
+	}
+
 	@Override
 	protected ServerBuilder<BufferedImage> createServerBuilder() {
 		return ImageServerBuilder.DefaultImageServerBuilder.createInstance(
@@ -1,6 +1,7 @@
 package qupath.lib.images.servers.slidescore;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -49,9 +50,13 @@ public class SlideScoreImageServerBuilder implements ImageServerBuilder<Buffered
 			if (slideScoreUnavailable)
 				return null;
 			try {
-				var server = new SlideScoreImageServer(uri.toString());
-				builders.add(server.getBuilder());
+				// Only the metadata is needed here, the server itself is built later from the cached metadata
+				var metadata = SlideScoreImageServer.createMetadata(SlideScoreImageServer.readMetadataJson(uri), uri.toString());
+				builders.add(DefaultImageServerBuilder.createInstance(SlideScoreImageServerBuilder.class, metadata, uri, args));
 				return UriImageSupport.createInstance(this.getClass(), supportLevel, builders);
+			} catch (IOException e) {
+				if (!SlideScoreImageServer.showIfSlideUnavailable(e))
+					logger.error("Unable to open '"+uri+"' with SlideScore: {}",  e);
 			} catch (UnsatisfiedLinkError e) {
 				logger.error("Could not access Slide Score, restart QuPath before trying again", e);
 				// Log that we couldn't create the link
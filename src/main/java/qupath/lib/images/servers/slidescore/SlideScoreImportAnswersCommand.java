@@ -1,14 +1,12 @@
 package qupath.lib.images.servers.slidescore;
 
-import com.google.gson.JsonParser;
 import com.google.gson.JsonSyntaxException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine.Command;
-import qupath.lib.geom.Point2;
+import picocli.CommandLine.IExitCodeGenerator;
+import picocli.CommandLine.Option;
 import qupath.lib.gui.QuPathGUI;
-import qupath.lib.gui.dialogs.Dialogs;
-import javafx.application.Platform;
 import qupath.lib.gui.extensions.Subcommand;
 import qupath.lib.gui.prefs.PathPrefs;
 import qupath.lib.gui.viewer.QuPathViewer;
@@ -19,19 +17,17 @@ import qupath.lib.objects.PathObject;
 import qupath.lib.objects.PathObjects;
 import qupath.lib.objects.classes.PathClassFactory;
 import qupath.lib.plugins.workflow.DefaultScriptableWorkflowStep;
-import qupath.lib.regions.ImagePlane;
-import qupath.lib.roi.PointsROI;
-import qupath.lib.roi.ROIs;
+import qupath.lib.projects.ProjectIO;
 import qupath.lib.roi.interfaces.ROI;
 
-import java.awt.*;
-import java.awt.geom.Area;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 /**
  * Command to import answers (results) from Slide Score for a slide.
@@ -40,11 +36,14 @@ import java.util.Locale;
  *
  */
 
-@Command(name = "slidescore-importanswers", description = "Import answers (results) from Slide Score for a slide.", sortOptions = false)
-public class SlideScoreImportAnswersCommand implements Runnable, Subcommand {
+@Command(name = "slidescore-importanswers", description = "Import answers (results) from Slide Score for a slide, or for all slides of a project.", sortOptions = false)
+public class SlideScoreImportAnswersCommand implements Runnable, Subcommand, IExitCodeGenerator {
 
     private static final Logger logger = LoggerFactory.getLogger(SlideScoreImportAnswersCommand.class);
 
+    // Number of annotations added to the hierarchy with one event
+    private static final int ADD_BATCH_SIZE = 10000;
+
     private QuPathGUI qupath;
 
     /**
@@ -59,16 +58,32 @@ public class SlideScoreImportAnswersCommand implements Runnable, Subcommand {
     public SlideScoreImportAnswersCommand() {
     }
 
+    @Option(names = {"-p", "--project"}, description = "Import the answers of all Slide Score images of this project")
+    private File projectFile;
+
+    @Option(names = {"-t", "--threads"}, description = "Number of images imported at the same time")
+    private int threads = 4;
+
+    @Option(names = {"--restart"}, description = "Import all images again instead of continuing an interrupted import")
+    private boolean restart;
+
+    @Option(names = {"-q", "--question"}, description = "Import only answers to this question")
     private String presetQuestion;
     private String presetColor;
+    @Option(names = {"-e", "--email"}, description = "Import only answers from this account")
     private String presetEmail;
     private Boolean setNames = false;
+    @Option(names = {"--incremental"}, description = "Import only answers that changed since the last import")
+    private boolean incremental = false;
 
     public Boolean dontAddAnnotations = false;
     private SlideScoreAnswer[] answers;
 
     private SlideScoreAnnotation[] annotations;
 
+    // Exit code of a run with --project
+    private int exitCode = 0;
+
     /**
      * Import only answers for this question. Leave empty to query the user with a list of questions
      *
@@ -86,6 +101,15 @@ public class SlideScoreImportAnswersCommand implements Runnable, Subcommand {
         presetEmail = email;
     }
 
+    /**
+     * Only import answers that changed since they were last imported into the image, the annotations of changed answers
+     * replace the ones imported before and those of answers deleted on Slide Score are removed.
+     *
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
     /**
      * Disable setting names on the annotations in the form of [question] by [account]
      *
@@ -97,181 +121,271 @@ public class SlideScoreImportAnswersCommand implements Runnable, Subcommand {
 
     @Override
     public void run() {
+        if (qupath == null) {
+            runProject();
+            return;
+        }
         QuPathViewer viewer = qupath.getViewer();
         ImageData<BufferedImage> imageData = viewer.getImageData();
-        run(imageData);
+        // Downloading and adding many annotations takes a while, keep the GUI responsive. The worker gets the question
+        // and account as locals, the command is shared by all clicks of the menu item.
+        String question = presetQuestion;
+        String email = presetEmail;
+        var thread = new Thread(() -> run(imageData, question, email), "slidescore-import-answers");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     public void run(ImageData<BufferedImage> imageData) {
+        run(imageData, presetQuestion, presetEmail);
+        presetEmail = null;
+        presetQuestion = null;
+    }
+
+    private void run(ImageData<BufferedImage> imageData, String question, String email) {
         if (imageData == null) {
-            Platform.runLater(() -> Dialogs.showNoImageError("Slide Score Answers Import"));
+            SlideScoreErrorReporter.getInstance().showNoImageError("Slide Score Answers Import");
             return;
         }
         try {
             ImageServer<BufferedImage> server = imageData.getServer();
             if (!(server instanceof SlideScoreImageServer)) {
-                Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score Answers Import", "This command only works for Slide Score slides."));
+                SlideScoreErrorReporter.getInstance().showError("Slide Score Answers Import", "This command only works for Slide Score slides.");
                 return;
             }
             var ssServer = (SlideScoreImageServer) server;
             try {
                 var annoQs = ssServer.getAnnotationQuestions();
-                if (presetQuestion == null && annoQs.length == 0) {
-                    Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score annotation upload", "No annotation type questions found."));
+                if (question == null && annoQs.length == 0) {
+                    SlideScoreErrorReporter.getInstance().showError("Slide Score annotation upload", "No annotation type questions found.");
                     return;
                 }
 
-                if (presetQuestion == null) {
+                if (question == null) {
                     String firstq = annoQs[0].toString();
                     if (annoQs.length > 1)
-                        presetQuestion = Dialogs.showChoiceDialog("Slide Score importing annotations", "Select question to download the annotations from. Or press cancel to import all annotations", annoQs, firstq);
+                        question = SlideScoreErrorReporter.getInstance().showChoiceDialog("Slide Score importing annotations", "Select question to download the annotations from. Or press cancel to import all annotations", annoQs, firstq);
                     else
-                        presetQuestion = firstq;
+                        question = firstq;
                 }
-                answers = ssServer.getAnswers(presetQuestion, presetEmail);
+                var answers = ssServer.getAnswers(question, email);
                 if (answers.length == 0) {
-                    Platform.runLater(() -> Dialogs.showInfoNotification("Slide Score Answers Import", "No answers found."));
+                    SlideScoreErrorReporter.getInstance().showNotification("Slide Score Answers Import", "No answers found.");
                     return;
                 }
-                if (presetEmail == null) {
+                if (email == null) {
                     var emails = new HashSet<String>();
                     for (var i = 0; i < answers.length; i++)
                         emails.add(answers[i].email);
                     var emailsList = emails.toArray(new String[0]);
                     String firste = emailsList[0].toString();
                     if (emailsList.length > 1) {
-                        presetEmail = Dialogs.showChoiceDialog("Slide Score importing annotations", "Select email from which to download the annotations. Or press cancel to import all annotations", emailsList, firste);
-                        if (presetEmail != null) {
+                        email = SlideScoreErrorReporter.getInstance().showChoiceDialog("Slide Score importing annotations", "Select email from which to download the annotations. Or press cancel to import all annotations", emailsList, firste);
+                        if (email != null) {
                             var newAnswers = new ArrayList<SlideScoreAnswer>();
                             for (var i = 0; i < answers.length; i++)
-                                if (answers[i].email.compareToIgnoreCase(presetEmail) == 0)
+                                if (answers[i].email.compareToIgnoreCase(email) == 0)
                                     newAnswers.add(answers[i]);
                             answers = newAnswers.toArray(new SlideScoreAnswer[0]);
                         }
                     } else {
-                        presetEmail = firste;
-                    }
-                }
-                //go through the results, if you find a json array, parse it as annotation and add it to current annotations
-                int count = 0;
-                for (var i = 0; i < answers.length; i++) {
-                    var a = answers[i];
-                    if (a.value.startsWith("[{") && a.value.endsWith("}]")) {
-                        try {
-                            var json = JsonParser.parseString(a.value).getAsJsonArray();
-                            var typeObject = new SlideScoreAnnotation[0];
-
-                            annotations = GsonTools.getInstance().fromJson(json, (Class<SlideScoreAnnotation[]>) typeObject.getClass());
-                            if (!dontAddAnnotations)
-                                importAnnotation(annotations, imageData, setNames ? a.question + " by " + a.email : null, a.color);
-                            count++;
-                        } catch (JsonSyntaxException ex) {
-                            throw new IOException("Parsing of answers failed", ex);
-                        }
-
+                        email = firste;
                     }
                 }
+                int count = importAnswers(imageData, answers, question, email);
                 if (count > 0 && !dontAddAnnotations) {
                     int importedCount = count;
-                    Platform.runLater(() -> Dialogs.showInfoNotification("Slide Score Answers Import", "Imported "+importedCount+" annotations."));
+                    SlideScoreErrorReporter.getInstance().showNotification("Slide Score Answers Import", "Imported "+importedCount+" annotations.");
 
                     // Log to the workflow history so the command can be turned into a script
                     StringBuilder script = new StringBuilder();
                     script.append("def importer = new qupath.lib.images.servers.slidescore.SlideScoreImportAnswersCommand()\n");
-                    if (presetQuestion != null)
-                        script.append("importer.setQuestion(\"").append(presetQuestion.replace("\\", "\\\\").replace("\"", "\\\"")).append("\")\n");
-                    if (presetEmail != null)
-                        script.append("importer.setEmail(\"").append(presetEmail.replace("\\", "\\\\").replace("\"", "\\\"")).append("\")\n");
+                    if (question != null)
+                        script.append("importer.setQuestion(\"").append(question.replace("\\", "\\\\").replace("\"", "\\\"")).append("\")\n");
+                    if (email != null)
+                        script.append("importer.setEmail(\"").append(email.replace("\\", "\\\\").replace("\"", "\\\"")).append("\")\n");
+                    if (incremental)
+                        script.append("importer.setIncremental(true)\n");
                     script.append("importer.run(getCurrentImageData())");
                     imageData.getHistoryWorkflow().addStep(new DefaultScriptableWorkflowStep(
                             "Download annotations from Slide Score", script.toString()));
                 }
-                presetEmail = null;
-                presetQuestion = null;
+                // The answers are only kept for scripts that don't import them, large answers take a lot of memory
+                if (dontAddAnnotations)
+                    this.answers = answers;
 
             } catch (Exception ex) {
-                Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score Answers Import", "Getting answers failed, see log."));
+                SlideScoreErrorReporter.getInstance().showError("Slide Score Answers Import", "Getting answers failed, see log.");
                 logger.error("Getting answers failed", ex);
             }
         } catch (java.lang.NoSuchMethodError ex) {
-            Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score Answers Import", "It seems that multiple versions of the Slide Score plugin are loaded. Can you please remove older versions of the plugin from the extensions directory and leave only qupath-extension-slidescore-0.5.0.jar"));
+            SlideScoreErrorReporter.getInstance().showError("Slide Score Answers Import", "It seems that multiple versions of the Slide Score plugin are loaded. Can you please remove older versions of the plugin from the extensions directory and leave only qupath-extension-slidescore-0.5.0.jar");
+        }
+    }
+
+    /**
+     * Exit code for the command line, non-zero if the project couldn't be processed or the import failed for any image
+     */
+    @Override
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    private void runProject() {
+        if (projectFile == null) {
+            logger.error("No project specified, use --project");
+            exitCode = 2;
+            return;
+        }
+        try {
+            var project = ProjectIO.loadProject(projectFile, BufferedImage.class);
+            SlideScoreImageServer.setProjectSupplier(() -> project);
+            var batch = new SlideScoreProjectBatch(project, "importanswers", threads);
+            if (restart)
+                batch.restart();
+            var summary = batch.run(entry -> {
+                var imageData = entry.readImageData();
+                try {
+                    if (!(imageData.getServer() instanceof SlideScoreImageServer))
+                        return null;
+                    var server = (SlideScoreImageServer) imageData.getServer();
+                    // Each image gets its own importer, they run in parallel
+                    var importer = new SlideScoreImportAnswersCommand();
+                    importer.setIncremental(incremental);
+                    int count = importer.importAnswers(imageData, server.getAnswers(presetQuestion, presetEmail), presetQuestion, presetEmail);
+                    if (count > 0)
+                        entry.saveImageData(imageData);
+                    return count + " answers imported";
+                } finally {
+                    imageData.getServer().close();
+                }
+            });
+            if (summary.failed > 0)
+                exitCode = 1;
+        } catch (Exception ex) {
+            logger.error("Importing answers failed", ex);
+            exitCode = 1;
         }
     }
 
+    /**
+     * Import answers into an image without any user interaction.
+     *
+     * @param imageData
+     * @param answers answers of the image's slide
+     * @param question question the answers were filtered by, or null for all questions
+     * @param email account the answers were filtered by, or null for all accounts
+     * @return number of answers that were imported, or removed because they were deleted on Slide Score
+     * @throws IOException if an answer can't be parsed
+     */
+    int importAnswers(ImageData<BufferedImage> imageData, SlideScoreAnswer[] answers, String question, String email) throws IOException {
+        //go through the results, if you find a json array, parse it as annotation and add it to current annotations
+        int count = 0;
+        int unchanged = 0;
+        var imported = new ArrayList<PathObject>();
+        var importedAnswers = new ArrayList<SlideScoreAnswer>();
+        // Annotations of these answers are replaced
+        var replacedKeys = new HashSet<String>();
+        var importedKeys = incremental && !dontAddAnnotations ? SlideScoreAnswerSync.getImportedKeys(imageData) : Set.<String>of();
+        for (var i = 0; i < answers.length; i++) {
+            var a = answers[i];
+            if (a.value.startsWith("[{") && a.value.endsWith("}]")) {
+                if (dontAddAnnotations) {
+                    // Scripts read the answers in Slide Score format
+                    try {
+                        annotations = GsonTools.getInstance().fromJson(a.value, SlideScoreAnnotation[].class);
+                    } catch (JsonSyntaxException ex) {
+                        throw new IOException("Parsing of answers failed", ex);
+                    }
+                } else {
+                    if (incremental && SlideScoreAnswerSync.isUnchanged(imageData, a)) {
+                        unchanged++;
+                        continue;
+                    }
+                    var objects = createAnnotations(SlideScoreAnnotationReader.fromJson(a.value), setNames ? a.question + " by " + a.email : null, a.color);
+                    for (var pathObject : objects)
+                        SlideScoreAnswerSync.tag(pathObject, a);
+                    imported.addAll(objects);
+                    importedAnswers.add(a);
+                    replacedKeys.add(SlideScoreAnswerSync.getKey(a));
+                }
+                count++;
+            } else if (importedKeys.contains(SlideScoreAnswerSync.getKey(a))) {
+                // The answer was changed to one without annotations, e.g. "[]", so its annotations are removed
+                var key = SlideScoreAnswerSync.getKey(a);
+                replacedKeys.add(key);
+                SlideScoreAnswerSync.forget(imageData, key);
+                count++;
+            }
+        }
+        if (incremental && !dontAddAnnotations) {
+            // Answers imported before that are gone from Slide Score
+            var current = new HashSet<String>();
+            for (var a : answers)
+                current.add(SlideScoreAnswerSync.getKey(a));
+            for (var key : SlideScoreAnswerSync.getImportedKeys(imageData)) {
+                var terms = key.split(";", 2);
+                if (current.contains(key) || (question != null && terms[0].compareToIgnoreCase(question) != 0)
+                        || (email != null && terms.length > 1 && terms[1].compareToIgnoreCase(email) != 0))
+                    continue;
+                replacedKeys.add(key);
+                SlideScoreAnswerSync.forget(imageData, key);
+                count++;
+            }
+            SlideScoreAnswerSync.removeImported(imageData, replacedKeys);
+            logger.info("Importing {} changed answers, {} unchanged, {} imported before", importedAnswers.size(), unchanged, replacedKeys.size());
+        }
+        if (count > 0 && !dontAddAnnotations) {
+            if (imported.size() > ADD_BATCH_SIZE)
+                SlideScoreErrorReporter.getInstance().showNotification("Slide Score Answers Import", "Adding " + imported.size() + " annotations...");
+            addObjects(imageData, imported);
+            for (var a : importedAnswers)
+                SlideScoreAnswerSync.record(imageData, a);
+        }
+        return count;
+    }
+
     public SlideScoreAnswer[] getAnswers()
     {
         return answers;
     }
 
+    /**
+     * Annotations of the last parsed answer in Slide Score format, only set with {@link #dontAddAnnotations}
+     */
+    public SlideScoreAnnotation[] getAnnotations()
+    {
+        return annotations;
+    }
+
     
 
-    private void importAnnotation(SlideScoreAnnotation[] annotations, ImageData<BufferedImage> imageData, String name, Integer color) {
-		if (annotations.length > 0 && annotations[0].type == null) {
-            var points = new ArrayList<Point2>();
-			for (var i=0;i<annotations.length;i++) {
-				points.add(new Point2(annotations[i].x, annotations[i].y));
-			}
-            var roi = ROIs.createPointsROI(points, ImagePlane.getDefaultPlane());
-			var annotation = PathObjects.createAnnotationObject(roi, PathClassFactory.getPathClass("PathAnnotationObject"));
-			if (setNames)
-				annotation.setName(name);
+    /**
+     * Create annotation objects for imported ROIs, they are added to the hierarchy by {@link #addObjects(ImageData, List)}
+     */
+    List<PathObject> createAnnotations(List<ROI> rois, String name, Integer color) {
+        var annotations = new ArrayList<PathObject>(rois.size());
+        for (var roi : rois) {
+            var annotation = PathObjects.createAnnotationObject(roi, PathClassFactory.getPathClass("PathAnnotationObject"));
+            if (setNames)
+                annotation.setName(name);
             if (color != null)
                 annotation.setColor(color);
-            if (!dontAddAnnotations)
-    			imageData.getHierarchy().addObject(annotation);
-			return;
-		}
-
-        for (var i=0;i<annotations.length;i++) {
-            var a = annotations[i];
-            ROI roi = null;
-            switch (a.type.toLowerCase()) {
-                case "rect": {
-                    // Create a new Rectangle ROI
-                    roi = ROIs.createRectangleROI(a.corner.getX(), a.corner.getY(), a.size.getX(), a.size.getY(), ImagePlane.getDefaultPlane());
-                    break;
-                }
-                case "ellipse": {
-                    // Create a new ROI
-                    roi = ROIs.createEllipseROI(a.center.getX() - a.size.getX(), a.center.getY() - a.size.getY(), a.size.getX() * 2, a.size.getY() * 2, ImagePlane.getDefaultPlane());
+            annotations.add(annotation);
+        }
+        return annotations;
+    }
 
-                    break;
-                }
-                case "polygon": {
-                    // Create a new ROI
-                    roi = ROIs.createPolygonROI(Arrays.asList(a.points), ImagePlane.getDefaultPlane());
-                    break;
-                }
-                case "brush": {
-                    var area = new Area();
-                    for (var j = 0; j < a.positivePolygons.length; j++) {
-                        // Create a new ROI
-                        var roiPartial = ROIs.createPolygonROI(Arrays.asList(a.positivePolygons[j]), ImagePlane.getDefaultPlane());
-                        area.add(new Area(roiPartial.getShape()));
-                    }
-                    for (var j = 0; j < a.negativePolygons.length; j++) {
-                        var roiPartial = ROIs.createPolygonROI(Arrays.asList(a.negativePolygons[j]), ImagePlane.getDefaultPlane());
-                        area.subtract(new Area(roiPartial.getShape()));
-                    }
-                    roi = ROIs.createAreaROI(area, ImagePlane.getDefaultPlane());
-                    break;
-                }
-                default: {
-                    logger.warn("Encountered unknown annotation type "+a.type);
-                    break;
-                }
-            }
-            if (roi != null) {
-                // Create & new annotation & add it to the object hierarchy
-                var annotation = PathObjects.createAnnotationObject(roi, PathClassFactory.getPathClass("PathAnnotationObject"));
-                if (setNames)
-                    annotation.setName(name);
-                if (color != null)
-                    annotation.setColor(color);
-
-                if (!dontAddAnnotations)
-                    imageData.getHierarchy().addObject(annotation);
-            }
+    /**
+     * Add objects to the hierarchy in batches, each batch fires a single hierarchy event instead of one per object.
+     */
+    static void addObjects(ImageData<BufferedImage> imageData, List<PathObject> objects) {
+        var hierarchy = imageData.getHierarchy();
+        for (int start = 0; start < objects.size(); start += ADD_BATCH_SIZE) {
+            int end = Math.min(objects.size(), start + ADD_BATCH_SIZE);
+            hierarchy.addObjects(objects.subList(start, end));
+            if (objects.size() > ADD_BATCH_SIZE)
+                logger.info("Added {} of {} annotations", end, objects.size());
         }
     }
 }
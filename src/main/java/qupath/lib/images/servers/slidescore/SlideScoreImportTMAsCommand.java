@@ -3,8 +3,6 @@ package qupath.lib.images.servers.slidescore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.lib.gui.QuPathGUI;
-import qupath.lib.gui.dialogs.Dialogs;
-import javafx.application.Platform;
 import qupath.lib.gui.extensions.Subcommand;
 import qupath.lib.gui.viewer.QuPathViewer;
 import qupath.lib.images.ImageData;
@@ -46,6 +44,10 @@ public class SlideScoreImportTMAsCommand implements Runnable, Subcommand {
 
     @Override
     public void run() {
+        if (qupath == null) {
+            SlideScoreErrorReporter.getInstance().showError("Slide Score TMA Import", "Without a GUI call run(imageData) from a script.");
+            return;
+        }
         QuPathViewer viewer = qupath.getViewer();
         ImageData<BufferedImage> imageData = viewer.getImageData();
         run(imageData);
@@ -53,19 +55,19 @@ public class SlideScoreImportTMAsCommand implements Runnable, Subcommand {
 
     public void run(ImageData<BufferedImage> imageData) {
         if (imageData == null) {
-            Platform.runLater(() -> Dialogs.showNoImageError("Slide Score TMA Import"));
+            SlideScoreErrorReporter.getInstance().showNoImageError("Slide Score TMA Import");
             return;
         }
         ImageServer<BufferedImage> server = imageData.getServer();
         if (!(server instanceof SlideScoreImageServer)) {
-            Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score TMA Import", "This command only works for Slide Score slides."));
+            SlideScoreErrorReporter.getInstance().showError("Slide Score TMA Import", "This command only works for Slide Score slides.");
             return;
         }
         var ssServer = (SlideScoreImageServer) server;
         try {
             var poss = ssServer.getTMAPositions();
             if (poss.cores.length == 0) {
-                Platform.runLater(() -> Dialogs.showInfoNotification("Slide Score TMA Import", "No TMA core positions found."));
+                SlideScoreErrorReporter.getInstance().showNotification("Slide Score TMA Import", "No TMA core positions found.");
                 return;
             }
             var width =ssServer.getOriginalMetadata().getWidth();
@@ -130,6 +132,9 @@ public class SlideScoreImportTMAsCommand implements Runnable, Subcommand {
                 co.setName(c.name);
                 if (poss.rotate != 0)
                     co.putMetadataValue("rotate", Integer.toString((int)poss.rotate));
+                // Large answers are uploaded per core, which needs its ID
+                if (c.id > 0)
+                    co.putMetadataValue(SlideScoreUploadAnnotationsCommand.TMA_CORE_ID_KEY, Integer.toString(c.id));
                 cores.add(co);
             }
             var myTMAGrid = DefaultTMAGrid.create(cores, maxCol);
@@ -139,7 +144,7 @@ public class SlideScoreImportTMAsCommand implements Runnable, Subcommand {
                     "Import TMA positions from Slide Score",
                     "new qupath.lib.images.servers.slidescore.SlideScoreImportTMAsCommand().run(getCurrentImageData())"));
         } catch (Exception ex) {
-            Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score TMA Import", "Getting TMA cores positions failed, see log."));
+            SlideScoreErrorReporter.getInstance().showError("Slide Score TMA Import", "Getting TMA cores positions failed, see log.");
             logger.error(ex.getLocalizedMessage());
         }
     }
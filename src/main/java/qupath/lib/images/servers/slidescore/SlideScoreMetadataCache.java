@@ -0,0 +1,140 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the SlideScoreMetadata.json of slides, in memory and on disk.
+ * <p>
+ * Opening an image checks the image support and then builds the server, and reopening a project builds all servers again.
+ * With this cache the metadata is downloaded at most once per {@link SlideScoreSettings#getMetadataCacheValiditySeconds()}.
+ * Entries are keyed by the whole link including its access token, so a link with an expired or revoked token is never
+ * opened from the cache and gets the server's answer instead.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreMetadataCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlideScoreMetadataCache.class);
+
+	private static SlideScoreMetadataCache instance;
+
+	private static class Entry {
+		private final String json;
+		private final long fetchedAt;
+
+		private Entry(String json, long fetchedAt) {
+			this.json = json;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+	SlideScoreMetadataCache() {
+	}
+
+	/**
+	 * Get the cache shared by all Slide Score servers.
+	 */
+	public static synchronized SlideScoreMetadataCache getInstance() {
+		if (instance == null)
+			instance = new SlideScoreMetadataCache();
+		return instance;
+	}
+
+	/**
+	 * Get the metadata JSON of a slide, downloading it only if there is no valid cached copy.
+	 *
+	 * @param uri link to the SlideScoreMetadata.json
+	 * @return
+	 * @throws IOException
+	 */
+	public String getMetadataJson(URI uri) throws IOException {
+		String key = getKey(uri);
+		// Only one thread downloads the metadata of a slide, the others wait for it
+		synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+			long validityMillis = SlideScoreSettings.getMetadataCacheValiditySeconds() * 1000L;
+			long now = System.currentTimeMillis();
+			var entry = entries.get(key);
+			if (entry != null && now - entry.fetchedAt < validityMillis)
+				return entry.json;
+
+			Path path = getPath(key);
+			if (validityMillis > 0 && path != null) {
+				try {
+					if (Files.isRegularFile(path) && now - Files.getLastModifiedTime(path).toMillis() < validityMillis) {
+						String json = Files.readString(path, StandardCharsets.UTF_8);
+						entries.put(key, new Entry(json, Files.getLastModifiedTime(path).toMillis()));
+						logger.debug("Read metadata of {} from {}", SlideScoreTileKey.getSlideId(uri), path);
+						return json;
+					}
+				} catch (IOException e) {
+					logger.debug("Unable to read cached metadata {}: {}", path, e.getLocalizedMessage());
+				}
+			}
+
+			String json = SlideScoreHttpClient.getInstance().getString(uri);
+			entries.put(key, new Entry(json, now));
+			if (validityMillis > 0 && path != null) {
+				try {
+					Files.createDirectories(path.getParent());
+					Path temp = Files.createTempFile(path.getParent(), "metadata", ".tmp");
+					try {
+						Files.writeString(temp, json, StandardCharsets.UTF_8);
+						Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					} finally {
+						Files.deleteIfExists(temp);
+					}
+				} catch (IOException e) {
+					logger.debug("Unable to cache metadata {}: {}", path, e.getLocalizedMessage());
+				}
+			}
+			return json;
+		}
+	}
+
+	/**
+	 * Remove the cached metadata of a slide, e.g. because it couldn't be parsed.
+	 *
+	 * @param uri
+	 */
+	public void invalidate(URI uri) {
+		String key = getKey(uri);
+		entries.remove(key);
+		Path path = getPath(key);
+		try {
+			if (path != null)
+				Files.deleteIfExists(path);
+		} catch (IOException e) {
+			logger.debug("Unable to delete cached metadata {}: {}", path, e.getLocalizedMessage());
+		}
+	}
+
+	/**
+	 * Key of the cached metadata, the slide identity with the token of the link
+	 */
+	private static String getKey(URI uri) {
+		String path = uri.getRawPath() == null ? "" : uri.getRawPath();
+		String query = uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery();
+		return SlideScoreTileKey.getSlideId(uri) + "|" + path + query;
+	}
+
+	private static Path getPath(String key) {
+		Path directory = SlideScoreSettings.getMetadataCacheDirectory();
+		if (directory == null)
+			return null;
+		return directory.resolve(SlideScoreTileCache.hash(key) + ".json");
+	}
+}
@@ -0,0 +1,264 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.servers.TileRequest;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Local copy of a whole Slide Score slide, for analysis without streaming.
+ * <p>
+ * A mirror is a tile pack: an uncompressed zip with the slide's SlideScoreMetadata.json and every tile of the pyramid
+ * exactly as QuPath requests it. It is stored in {@link SlideScoreSettings#getMirrorDirectory()} under the slide identity,
+ * so a {@link SlideScoreImageServer} opened with the usual Slide Score link reads its pixels from the mirror while answers and
+ * annotations are still exchanged with Slide Score.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreMirror implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlideScoreMirror.class);
+
+	private static final String METADATA_ENTRY = "SlideScoreMetadata.json";
+
+	// Number of open instances per mirror, a mirror that is being read must not be replaced
+	private static final Map<Path, Integer> openMirrors = new ConcurrentHashMap<>();
+
+	private final Path path;
+	private final ZipFile zip;
+	private boolean closed;
+
+	private SlideScoreMirror(Path path) throws IOException {
+		this.path = path;
+		zip = new ZipFile(path.toFile());
+		openMirrors.merge(path, 1, Integer::sum);
+	}
+
+	/**
+	 * Open the mirror of a slide.
+	 *
+	 * @param slideId see {@link SlideScoreTileKey#getSlideId}
+	 * @return the mirror, or null if the slide hasn't been mirrored
+	 */
+	public static SlideScoreMirror open(String slideId) {
+		Path path = getPath(slideId);
+		if (path == null || !Files.isRegularFile(path))
+			return null;
+		try {
+			return new SlideScoreMirror(path);
+		} catch (IOException e) {
+			logger.warn("Unable to open the mirror {}: {}", path, e.getLocalizedMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Check whether a slide has been mirrored.
+	 *
+	 * @param slideId
+	 * @return
+	 */
+	public static boolean exists(String slideId) {
+		Path path = getPath(slideId);
+		return path != null && Files.isRegularFile(path);
+	}
+
+	/**
+	 * Get the metadata JSON of the mirrored slide.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public String getMetadataJson() throws IOException {
+		var entry = zip.getEntry(METADATA_ENTRY);
+		if (entry == null)
+			throw new IOException("Mirror " + zip.getName() + " has no metadata");
+		try (var stream = zip.getInputStream(entry)) {
+			return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Get the encoded bytes of a tile.
+	 *
+	 * @param key
+	 * @return the bytes, or null if the mirror doesn't contain this tile
+	 * @throws IOException
+	 */
+	public byte[] getTile(SlideScoreTileKey key) throws IOException {
+		var entry = zip.getEntry(getEntryName(key));
+		if (entry == null)
+			return null;
+		try (var stream = zip.getInputStream(entry)) {
+			return stream.readAllBytes();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+		openMirrors.computeIfPresent(path, (p, n) -> n > 1 ? n - 1 : null);
+		zip.close();
+	}
+
+	/**
+	 * Download all tiles of a slide in parallel and write them to its mirror, replacing an existing mirror.
+	 * An existing mirror can't be replaced while a server reads from it.
+	 *
+	 * @param server server of the slide, it must not be reading from a mirror itself
+	 * @param metadataJson the slide's SlideScoreMetadata.json
+	 * @param progress called with the number of tiles done and the total number of tiles, may be null
+	 * @return path of the mirror
+	 * @throws IOException
+	 */
+	static Path download(SlideScoreImageServer server, String metadataJson, BiConsumer<Integer, Integer> progress) throws IOException {
+		String slideId = server.getSlideId();
+		Path path = getPath(slideId);
+		if (path == null)
+			throw new IOException("No mirror directory is set");
+		checkNotOpen(slideId, path);
+		Files.createDirectories(path.getParent());
+
+		var tiles = new ArrayList<TileRequest>();
+		for (int level = 0; level < server.nResolutions(); level++) {
+			for (var tile : server.getTileRequestManager().getTileRequestsForLevel(level)) {
+				if (tile.getZ() == 0 && tile.getT() == 0)
+					tiles.add(tile);
+			}
+		}
+		logger.info("Mirroring {} tiles of {} to {}", tiles.size(), slideId, path);
+
+		var tileCache = SlideScoreTileCache.getInstance();
+		Path temp = Files.createTempFile(path.getParent(), "mirror", ".tmp");
+		var pool = Executors.newFixedThreadPool(SlideScoreSettings.getMirrorThreads(), r -> {
+			var thread = new Thread(r, "slidescore-mirror");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try (var zipStream = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			// Tiles are already compressed, storing them keeps reading a tile a plain seek
+			zipStream.setMethod(ZipOutputStream.STORED);
+			writeEntry(zipStream, METADATA_ENTRY, metadataJson.getBytes(StandardCharsets.UTF_8));
+
+			var done = new AtomicInteger();
+			var futures = new ArrayList<Future<?>>(tiles.size());
+			for (var tile : tiles) {
+				futures.add(pool.submit(() -> {
+					var key = server.getTileKey(tile);
+					byte[] bytes = tileCache == null ? null : tileCache.get(key);
+					if (bytes == null)
+						bytes = server.fetchTile(key);
+					synchronized (zipStream) {
+						writeEntry(zipStream, getEntryName(key), bytes);
+					}
+					int n = done.incrementAndGet();
+					if (progress != null)
+						progress.accept(n, tiles.size());
+					return null;
+				}));
+			}
+			for (var future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw new IOException("Mirroring " + slideId + " failed", e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Files.deleteIfExists(temp);
+			throw new IOException("Mirroring " + slideId + " was interrupted", e);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		} finally {
+			pool.shutdownNow();
+		}
+		try {
+			// The mirror may have been opened during the download
+			checkNotOpen(slideId, path);
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		logger.info("Mirrored {} to {}", slideId, path);
+		return path;
+	}
+
+	/**
+	 * Delete the mirror of a slide, so that it is streamed from Slide Score again.
+	 *
+	 * @param slideId
+	 * @return true if there was a mirror
+	 * @throws IOException
+	 */
+	public static boolean delete(String slideId) throws IOException {
+		Path path = getPath(slideId);
+		if (path == null)
+			return false;
+		checkNotOpen(slideId, path);
+		return Files.deleteIfExists(path);
+	}
+
+	/**
+	 * Check whether a slide's mirror is being read, e.g. by the server of an open image.
+	 *
+	 * @param slideId
+	 * @return
+	 */
+	public static boolean isOpen(String slideId) {
+		Path path = getPath(slideId);
+		return path != null && openMirrors.containsKey(path);
+	}
+
+	private static void checkNotOpen(String slideId, Path path) throws IOException {
+		if (openMirrors.containsKey(path))
+			throw new IOException("The mirror of " + slideId + " is in use, close the image before mirroring it again");
+	}
+
+	private static void writeEntry(ZipOutputStream zipStream, String name, byte[] bytes) throws IOException {
+		var entry = new ZipEntry(name);
+		var crc = new CRC32();
+		crc.update(bytes);
+		entry.setSize(bytes.length);
+		entry.setCompressedSize(bytes.length);
+		entry.setCrc(crc.getValue());
+		zipStream.putNextEntry(entry);
+		zipStream.write(bytes);
+		zipStream.closeEntry();
+	}
+
+	private static String getEntryName(SlideScoreTileKey key) {
+		return "tiles/" + key.getFileName();
+	}
+
+	private static Path getPath(String slideId) {
+		Path directory = SlideScoreSettings.getMirrorDirectory();
+		if (directory == null)
+			return null;
+		return directory.resolve(SlideScoreTileCache.hash(slideId) + ".sspack");
+	}
+}
@@ -0,0 +1,158 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.dialogs.Dialogs;
+import javafx.application.Platform;
+import qupath.lib.gui.extensions.Subcommand;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.projects.ProjectIO;
+import qupath.lib.projects.ProjectImageEntry;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Command to download a whole Slide Score slide to a local mirror, so it can be analysed without streaming.
+ * See {@link SlideScoreMirror}.
+ *
+ * @author Jan Hudecek
+ *
+ */
+@Command(name = "slidescore-mirror", description = "Download Slide Score slides to a local mirror so they can be analysed without streaming", sortOptions = false)
+public class SlideScoreMirrorCommand implements Runnable, Subcommand {
+
+    private static final Logger logger = LoggerFactory.getLogger(SlideScoreMirrorCommand.class);
+
+    private QuPathGUI qupath;
+
+    @Option(names = {"-p", "--project"}, description = "Mirror all Slide Score images of this project")
+    private File projectFile;
+
+    /**
+     * Constructor.
+     *
+     * @param qupath current QuPath instance.
+     */
+    public SlideScoreMirrorCommand(final QuPathGUI qupath) {
+        this.qupath = qupath;
+    }
+
+    public SlideScoreMirrorCommand() {
+    }
+
+    @Override
+    public void run() {
+        if (qupath == null) {
+            runProject();
+            return;
+        }
+        ImageData<BufferedImage> imageData = qupath.getImageData();
+        if (imageData == null) {
+            Dialogs.showNoImageError("Slide Score Mirror");
+            return;
+        }
+        ImageServer<BufferedImage> server = imageData.getServer();
+        if (!(server instanceof SlideScoreImageServer)) {
+            Dialogs.showErrorMessage("Slide Score Mirror", "This command only works for Slide Score slides.");
+            return;
+        }
+        var ssServer = (SlideScoreImageServer) server;
+        if (SlideScoreMirror.isOpen(ssServer.getSlideId())) {
+            Dialogs.showErrorMessage("Slide Score Mirror", "This slide is read from its mirror, it can't be downloaded again while it is open.");
+            return;
+        }
+        if (SlideScoreMirror.exists(ssServer.getSlideId())
+                && !Dialogs.showConfirmDialog("Slide Score Mirror", "This slide is already mirrored, download it again?"))
+            return;
+        Dialogs.showInfoNotification("Slide Score Mirror", "Downloading the slide in the background...");
+        var thread = new Thread(() -> {
+            try {
+                Path path = mirror(ssServer);
+                Platform.runLater(() -> Dialogs.showInfoNotification("Slide Score Mirror",
+                        "Slide was mirrored to " + path + ", it will be read from there after the image is reopened."));
+            } catch (IOException ex) {
+                logger.error("Mirroring failed", ex);
+                Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score Mirror", "Mirroring failed: " + ex.getLocalizedMessage()));
+            }
+        }, "slidescore-mirror-command");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void runProject() {
+        if (projectFile == null) {
+            logger.error("No project specified, use --project");
+            return;
+        }
+        try {
+            var project = ProjectIO.loadProject(projectFile, BufferedImage.class);
+            SlideScoreImageServer.setProjectSupplier(() -> project);
+            int failed = 0;
+            for (var entry : project.getImageList()) {
+                // One slide failing doesn't stop the others
+                try {
+                    mirrorEntry(entry);
+                } catch (Exception ex) {
+                    failed++;
+                    logger.error("Mirroring {} failed", entry.getImageName(), ex);
+                }
+            }
+            if (failed > 0)
+                logger.error("Mirroring failed for {} of {} images", failed, project.getImageList().size());
+        } catch (Exception ex) {
+            logger.error("Mirroring failed", ex);
+        }
+    }
+
+    /**
+     * Mirror the slide of a project entry, unless it isn't a Slide Score slide or is mirrored already
+     */
+    private static void mirrorEntry(ProjectImageEntry<BufferedImage> entry) throws Exception {
+        // Only the server is needed, not the hierarchy
+        var server = entry.getServerBuilder().build();
+        try {
+            if (!(server instanceof SlideScoreImageServer)) {
+                logger.info("Skipping {}, it isn't a Slide Score slide", entry.getImageName());
+                return;
+            }
+            var ssServer = (SlideScoreImageServer) server;
+            if (SlideScoreMirror.exists(ssServer.getSlideId())) {
+                logger.info("Skipping {}, it is already mirrored", entry.getImageName());
+                return;
+            }
+            logger.info("Mirroring {}", entry.getImageName());
+            mirror(ssServer);
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Download all tiles of a Slide Score slide to its local mirror.
+     *
+     * @param server
+     * @return path of the mirror
+     * @throws IOException
+     */
+    public static Path mirror(SlideScoreImageServer server) throws IOException {
+        var uri = server.getURIs().iterator().next();
+        String metadataJson = SlideScoreMetadataCache.getInstance().getMetadataJson(uri);
+        int[] lastPercent = { -1 };
+        return SlideScoreMirror.download(server, metadataJson, (done, total) -> {
+            int percent = (int) (100L * done / total);
+            synchronized (lastPercent) {
+                if (percent / 10 != lastPercent[0] / 10) {
+                    lastPercent[0] = percent;
+                    logger.info("Mirrored {} of {} tiles ({}%)", done, total, percent);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,258 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a task for every image of a project on a bounded thread pool, for the project-wide commands.
+ * <p>
+ * Entries that are done are appended to a checkpoint file next to the project, so an interrupted run continues with
+ * the remaining entries. The checkpoint is removed once every entry succeeded. The outcome of each entry is written
+ * to a CSV report next to the project.
+ * <p>
+ * An {@link AsyncEntryTask} can hand the last part of its work for an entry to another stage, e.g. uploads bounded per
+ * server, so that the batch's threads go on with the next entries in the meantime.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreProjectBatch {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlideScoreProjectBatch.class);
+
+	/**
+	 * Work done for one entry of the project
+	 */
+	public interface EntryTask {
+		/**
+		 * Process an entry
+		 *
+		 * @param entry
+		 * @return short description of what was done for the report, or null if the entry was skipped
+		 * @throws Exception if the entry failed, the other entries are still processed
+		 */
+		String process(ProjectImageEntry<BufferedImage> entry) throws Exception;
+	}
+
+	/**
+	 * Work done for one entry that finishes outside the batch's threads
+	 */
+	public interface AsyncEntryTask {
+		/**
+		 * Start processing an entry
+		 *
+		 * @param entry
+		 * @return completes with a short description of what was done for the report, or null if the entry was skipped
+		 * @throws Exception if the entry failed, the other entries are still processed
+		 */
+		CompletionStage<String> process(ProjectImageEntry<BufferedImage> entry) throws Exception;
+	}
+
+	/**
+	 * Counts of the entries of a finished run
+	 */
+	public static class Summary {
+		public final int done, skipped, failed, resumed;
+
+		Summary(int done, int skipped, int failed, int resumed) {
+			this.done = done;
+			this.skipped = skipped;
+			this.failed = failed;
+			this.resumed = resumed;
+		}
+
+		@Override
+		public String toString() {
+			return done + " done, " + skipped + " skipped, " + failed + " failed, " + resumed + " done in an earlier run";
+		}
+	}
+
+	private final Project<BufferedImage> project;
+	private final String name;
+	private final int threads;
+	private final Path checkpoint;
+	private final Path report;
+
+	/**
+	 * @param project
+	 * @param name name of the job, used for the checkpoint and report file names
+	 * @param threads number of entries processed at the same time
+	 */
+	public SlideScoreProjectBatch(Project<BufferedImage> project, String name, int threads) {
+		this.project = project;
+		this.name = name;
+		this.threads = Math.max(1, threads);
+		var directory = project.getPath().toAbsolutePath().getParent();
+		checkpoint = directory.resolve("slidescore-" + name + ".checkpoint");
+		report = directory.resolve("slidescore-" + name + "-report.csv");
+	}
+
+	/**
+	 * Forget the entries done by an earlier run, so all entries are processed again
+	 */
+	public void restart() throws IOException {
+		Files.deleteIfExists(checkpoint);
+	}
+
+	/**
+	 * CSV file with one line per entry of the last run
+	 */
+	public Path getReport() {
+		return report;
+	}
+
+	/**
+	 * Process all entries that weren't done in an earlier run
+	 *
+	 * @param task
+	 * @return counts of the entries
+	 * @throws IOException if the checkpoint or report can't be written
+	 * @throws InterruptedException
+	 */
+	public Summary run(EntryTask task) throws IOException, InterruptedException {
+		return runAsync(entry -> CompletableFuture.completedFuture(task.process(entry)));
+	}
+
+	/**
+	 * Process all entries that weren't done in an earlier run. An entry counts as done once the stage returned by the
+	 * task completes, the batch's threads start on other entries before that.
+	 *
+	 * @param task
+	 * @return counts of the entries
+	 * @throws IOException if the checkpoint or report can't be written
+	 * @throws InterruptedException
+	 */
+	public Summary runAsync(AsyncEntryTask task) throws IOException, InterruptedException {
+		var finished = readCheckpoint();
+		var entries = new ArrayList<ProjectImageEntry<BufferedImage>>();
+		for (var entry : project.getImageList()) {
+			if (!finished.contains(entry.getID()))
+				entries.add(entry);
+		}
+		int resumed = project.getImageList().size() - entries.size();
+		if (resumed > 0)
+			logger.info("Resuming {}, {} of {} entries were done before", name, resumed, project.getImageList().size());
+
+		var done = new AtomicInteger();
+		var skipped = new AtomicInteger();
+		var failed = new AtomicInteger();
+		var progress = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			var thread = new Thread(r, "slidescore-" + name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		// A resumed run adds to the report of the run it continues
+		boolean appendReport = resumed > 0 && Files.isRegularFile(report);
+		try (BufferedWriter checkpointWriter = Files.newBufferedWriter(checkpoint, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			 BufferedWriter reportWriter = appendReport
+					 ? Files.newBufferedWriter(report, StandardCharsets.UTF_8, StandardOpenOption.APPEND)
+					 : Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+			if (!appendReport)
+				reportWriter.write("entry,image,status,millis,message\n");
+			List<Future<CompletableFuture<Void>>> futures = new ArrayList<>();
+			for (var entry : entries) {
+				futures.add(pool.submit(() -> {
+					long start = System.currentTimeMillis();
+					CompletionStage<String> stage;
+					try {
+						stage = task.process(entry);
+					} catch (Exception ex) {
+						stage = CompletableFuture.failedFuture(ex);
+					}
+					return stage.handle((result, error) -> {
+						String status;
+						String message = result;
+						if (error == null) {
+							status = message == null ? "skipped" : "done";
+							(message == null ? skipped : done).incrementAndGet();
+						} else {
+							if (error instanceof CompletionException && error.getCause() != null)
+								error = error.getCause();
+							status = "failed";
+							message = error.getLocalizedMessage();
+							failed.incrementAndGet();
+							logger.error("{} of {} failed", name, entry.getImageName(), error);
+						}
+						long millis = System.currentTimeMillis() - start;
+						logger.info("[{}/{}] {}: {} {}", progress.incrementAndGet(), entries.size(), entry.getImageName(), status,
+								message == null ? "" : message);
+						synchronized (this) {
+							try {
+								reportWriter.write(csv(entry.getID()) + "," + csv(entry.getImageName()) + "," + status + ","
+										+ millis + "," + csv(message) + "\n");
+								reportWriter.flush();
+								if (!status.equals("failed")) {
+									checkpointWriter.write(entry.getID() + "\n");
+									checkpointWriter.flush();
+								}
+							} catch (IOException ex) {
+								logger.warn("Unable to write the progress of {}: {}", name, ex.getLocalizedMessage());
+							}
+						}
+						return (Void) null;
+					}).toCompletableFuture();
+				}));
+			}
+			for (var future : futures) {
+				try {
+					future.get().get();
+				} catch (ExecutionException ex) {
+					// Failures are reported by the task itself
+					logger.error("{} failed", name, ex.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		var summary = new Summary(done.get(), skipped.get(), failed.get(), resumed);
+		if (summary.failed == 0)
+			Files.deleteIfExists(checkpoint);
+		logger.info("Finished {}: {}, report in {}", name, summary, report);
+		return summary;
+	}
+
+	private Set<String> readCheckpoint() throws IOException {
+		var finished = new HashSet<String>();
+		if (Files.isRegularFile(checkpoint)) {
+			for (var line : Files.readAllLines(checkpoint, StandardCharsets.UTF_8)) {
+				if (!line.isBlank())
+					finished.add(line.trim());
+			}
+		}
+		return finished;
+	}
+
+	private static String csv(String value) {
+		if (value == null)
+			return "";
+		if (value.contains(",") || value.contains("\"") || value.contains("\n"))
+			return "\"" + value.replace("\"", "\"\"") + "\"";
+		return value;
+	}
+}
@@ -0,0 +1,150 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Sends a second copy of a slow request and uses whichever answer arrives first.
+ * <p>
+ * A request is hedged when it takes longer than {@link SlideScoreSettings#getHedgingPercentile()} of the recent response
+ * times of its host. To keep the extra load bounded, at most {@link SlideScoreSettings#getHedgingBudgetPercent()}
+ * percent of the requests are hedged. Only use this for requests without side effects.
+ * <p>
+ * The response times are reported by the sender with {@link #addResponseTime(URI, long)}, for a single attempt of a
+ * request without the time it waited for a connection, so they only describe how fast the server answers.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreRequestHedger {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlideScoreRequestHedger.class);
+
+	// Number of recent response times the hedging delay is computed from
+	private static final int WINDOW = 256;
+	// Don't hedge until there are enough response times to know what slow is
+	private static final int MIN_SAMPLES = 20;
+
+	/**
+	 * A request that can be sent more than once.
+	 */
+	public interface Request {
+		byte[] send() throws IOException;
+	}
+
+	private static class HostStats {
+		private final long[] latencies = new long[WINDOW];
+		private int count = 0;
+		private long requests = 0;
+		private long hedged = 0;
+
+		private synchronized void add(long latencyMillis) {
+			latencies[count % WINDOW] = latencyMillis;
+			count++;
+		}
+
+		private synchronized long getPercentile(double percentile) {
+			int n = Math.min(count, WINDOW);
+			if (n < MIN_SAMPLES)
+				return -1;
+			long[] sorted = Arrays.copyOf(latencies, n);
+			Arrays.sort(sorted);
+			return sorted[Math.min(n - 1, (int) Math.ceil(percentile / 100.0 * n) - 1)];
+		}
+
+		private synchronized boolean tryHedge(double budgetPercent) {
+			if (hedged + 1 > budgetPercent / 100.0 * requests)
+				return false;
+			hedged++;
+			return true;
+		}
+	}
+
+	private static final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+		var thread = new Thread(r, "slidescore-hedged-request");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Map<String, HostStats> stats = new ConcurrentHashMap<>();
+
+	/**
+	 * Record how long the server took to answer one attempt of a request
+	 *
+	 * @param uri the request's URI, response times are kept per host
+	 * @param latencyMillis
+	 */
+	public void addResponseTime(URI uri, long latencyMillis) {
+		getStats(uri).add(latencyMillis);
+	}
+
+	private HostStats getStats(URI uri) {
+		return stats.computeIfAbsent(uri.getHost() == null ? "" : uri.getHost(), h -> new HostStats());
+	}
+
+	/**
+	 * Send a request, hedging it if it is slow and hedging is enabled.
+	 *
+	 * @param uri the request's URI, used to keep response times per host
+	 * @param request
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] send(URI uri, Request request) throws IOException {
+		var hostStats = getStats(uri);
+		synchronized (hostStats) {
+			hostStats.requests++;
+		}
+		if (!SlideScoreSettings.isHedgingEnabled())
+			return request.send();
+		Callable<byte[]> call = request::send;
+
+		long delay = hostStats.getPercentile(SlideScoreSettings.getHedgingPercentile());
+		var completion = new ExecutorCompletionService<byte[]>(pool);
+		var futures = new ArrayList<Future<byte[]>>(2);
+		futures.add(completion.submit(call));
+		try {
+			Future<byte[]> first = delay < 0 ? completion.take() : completion.poll(delay, TimeUnit.MILLISECONDS);
+			if (first == null) {
+				if (hostStats.tryHedge(SlideScoreSettings.getHedgingBudgetPercent())) {
+					logger.trace("Hedging {} after {} ms", uri, delay);
+					futures.add(completion.submit(call));
+				}
+				first = completion.take();
+			}
+			try {
+				return first.get();
+			} catch (ExecutionException e) {
+				if (futures.size() == 1)
+					throw unwrap(e);
+				// One copy failed, the other may still succeed
+				try {
+					return completion.take().get();
+				} catch (ExecutionException e2) {
+					throw unwrap(e2);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + uri);
+		} finally {
+			// Stop the copy that lost
+			for (var future : futures)
+				future.cancel(true);
+		}
+	}
+
+	private static IOException unwrap(ExecutionException e) {
+		if (e.getCause() instanceof IOException)
+			return (IOException) e.getCause();
+		return new IOException(e.getCause());
+	}
+}
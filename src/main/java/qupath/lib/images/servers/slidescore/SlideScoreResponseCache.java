@@ -0,0 +1,118 @@
+package qupath.lib.images.servers.slidescore;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * In-memory cache of text responses of the Slide Score API, such as the questions and answers of a slide.
+ * <p>
+ * Responses are keyed by their URI, which identifies the slide. A response is used as is while it is younger than the
+ * maximum age asked for, after that it is revalidated with its ETag or Last-Modified date, so an unchanged response
+ * costs a 304 instead of the full body. The least recently used responses are dropped once the cache holds more than
+ * {@link #MAX_CHARS} characters.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreResponseCache {
+
+	// Answers of large annotations can be big, don't let them take over the heap
+	static final long MAX_CHARS = 16L * 1024 * 1024;
+
+	/**
+	 * A cached response
+	 */
+	public static class Entry {
+		private final String body;
+		private final String etag;
+		private final String lastModified;
+		private final long validatedAt;
+
+		Entry(String body, String etag, String lastModified, long validatedAt) {
+			this.body = body;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.validatedAt = validatedAt;
+		}
+
+		public String getBody() {
+			return body;
+		}
+
+		/**
+		 * ETag of the response, or null if the server didn't send one
+		 */
+		public String getETag() {
+			return etag;
+		}
+
+		/**
+		 * Last-Modified date of the response, or null if the server didn't send one
+		 */
+		public String getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Whether the response can be revalidated with a conditional request
+		 */
+		public boolean isRevalidatable() {
+			return etag != null || lastModified != null;
+		}
+
+		long getAgeMillis() {
+			return System.currentTimeMillis() - validatedAt;
+		}
+
+		/**
+		 * The same response, confirmed by the server now
+		 */
+		Entry revalidated() {
+			return new Entry(body, etag, lastModified, System.currentTimeMillis());
+		}
+	}
+
+	private final LinkedHashMap<URI, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long chars;
+
+	/**
+	 * Get a cached response
+	 *
+	 * @param uri
+	 * @return the response, or null if it isn't cached
+	 */
+	public synchronized Entry get(URI uri) {
+		return entries.get(uri);
+	}
+
+	/**
+	 * Cache a response, responses too large for the cache are not kept.
+	 */
+	public synchronized void put(URI uri, Entry entry) {
+		remove(uri);
+		if (entry.body.length() > MAX_CHARS / 4)
+			return;
+		entries.put(uri, entry);
+		chars += entry.body.length();
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (chars > MAX_CHARS && iterator.hasNext()) {
+			chars -= iterator.next().body.length();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Forget a response, e.g. because a request changed it on the server
+	 */
+	public synchronized void remove(URI uri) {
+		var removed = entries.remove(uri);
+		if (removed != null)
+			chars -= removed.body.length();
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		chars = 0;
+	}
+}
@@ -0,0 +1,132 @@
+package qupath.lib.images.servers.slidescore;
+
+import io.tus.java.client.ProtocolException;
+import io.tus.java.client.TusClient;
+import io.tus.java.client.TusExecutor;
+import io.tus.java.client.TusUpload;
+import io.tus.java.client.TusUploader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Uploads a file with tus, resuming where a previous attempt stopped.
+ * <p>
+ * The upload URL is kept in the {@link SlideScoreUploadStore} under the upload's fingerprint, so an upload that failed
+ * earlier in the session continues from the last byte the server received. Failed requests are retried
+ * with backoff. The size of each request adapts to the measured throughput: on a slow connection less is sent again
+ * after a failure, on a fast one there are fewer round trips.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreResumableUpload {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlideScoreResumableUpload.class);
+
+	// Aim for requests that take this long at the measured throughput
+	private static final double TARGET_REQUEST_SECONDS = 5;
+	private static final int MIN_REQUEST_SIZE = 256 * 1024;
+	private static final int MAX_REQUEST_SIZE = 64 * 1024 * 1024;
+	// Chunks are the unit of reading and of throughput measurements within a request
+	private static final int CHUNKS_PER_REQUEST = 8;
+
+	private final TusClient client;
+	private final TusUpload upload;
+	private double bytesPerSecond = -1;
+
+	/**
+	 * Prepare an upload
+	 *
+	 * @param creationUrl tus endpoint where uploads are created
+	 * @param file
+	 * @param fingerprint identifies the upload in the {@link SlideScoreUploadStore}
+	 * @param metadata tus metadata of the upload
+	 * @throws IOException
+	 */
+	public SlideScoreResumableUpload(URL creationUrl, File file, String fingerprint, Map<String, String> metadata) throws IOException {
+		client = new TusClient();
+		client.setUploadCreationURL(creationUrl);
+		client.setConnectTimeout(SlideScoreSettings.getConnectTimeoutSeconds() * 1000);
+		client.enableResuming(SlideScoreUploadStore.getInstance());
+		upload = new TusUpload(file);
+		upload.setFingerprint(fingerprint);
+		upload.setMetadata(metadata);
+	}
+
+	/**
+	 * Upload the file, resuming a previous upload with the same fingerprint if there is one.
+	 *
+	 * @return URL of the finished upload
+	 * @throws IOException
+	 * @throws ProtocolException if the server refuses the upload
+	 */
+	public URL upload() throws IOException, ProtocolException {
+		URL[] uploadUrl = { null };
+		var executor = new TusExecutor() {
+			@Override
+			protected void makeAttempt() throws ProtocolException, IOException {
+				// A retry reopens the file and asks the server where to continue from
+				var uploader = client.resumeOrCreateUpload(upload);
+				if (uploader.getOffset() > 0)
+					logger.info("Resuming upload at {} of {} bytes", uploader.getOffset(), upload.getSize());
+				uploadChunks(uploader);
+				uploader.finish();
+				uploadUrl[0] = uploader.getUploadURL();
+			}
+		};
+		int retries = Math.max(0, SlideScoreSettings.getMaxRetries());
+		int[] delays = new int[retries];
+		for (int i = 0; i < retries; i++)
+			delays[i] = (int) Math.min(30_000, 1000L << i);
+		executor.setDelays(delays);
+		if (!executor.makeAttempts())
+			throw new InterruptedIOException("Upload of " + upload.getFingerprint() + " was interrupted");
+		return uploadUrl[0];
+	}
+
+	private void uploadChunks(TusUploader uploader) throws IOException, ProtocolException {
+		tune(uploader);
+		while (true) {
+			long start = System.nanoTime();
+			int n = uploader.uploadChunk();
+			if (n <= -1)
+				break;
+			double seconds = (System.nanoTime() - start) / 1e9;
+			if (n > 0 && seconds > 0) {
+				double measured = n / seconds;
+				bytesPerSecond = bytesPerSecond < 0 ? measured : 0.7 * bytesPerSecond + 0.3 * measured;
+			}
+			SlideScoreUploadStore.getInstance().setOffset(upload.getFingerprint(), uploader.getOffset());
+			tune(uploader);
+		}
+	}
+
+	/**
+	 * Size the requests to the measured throughput
+	 */
+	private void tune(TusUploader uploader) {
+		int requestSize = uploader.getRequestPayloadSize();
+		if (bytesPerSecond > 0) {
+			requestSize = (int) Math.max(MIN_REQUEST_SIZE, Math.min(MAX_REQUEST_SIZE, bytesPerSecond * TARGET_REQUEST_SECONDS));
+		} else {
+			// Start small until there is a measurement
+			requestSize = Math.max(MIN_REQUEST_SIZE, Math.min(requestSize, 1024 * 1024));
+		}
+		if (requestSize != uploader.getRequestPayloadSize()) {
+			try {
+				uploader.setRequestPayloadSize(requestSize);
+				logger.debug("Upload request size set to {} bytes", requestSize);
+			} catch (IllegalStateException e) {
+				// A request is in progress, its size can't change until it is done
+				return;
+			}
+		}
+		uploader.setChunkSize(Math.max(16 * 1024, requestSize / CHUNKS_PER_REQUEST));
+	}
+}
@@ -0,0 +1,271 @@
+package qupath.lib.images.servers.slidescore;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Settings shared by all Slide Score servers and commands.
+ * <p>
+ * Defaults can be overridden with system properties (e.g. {@code -Dslidescore.tileCache.maxSizeMB=4096})
+ * or from a script before any slide is opened.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreSettings {
+
+	private static boolean tileCacheEnabled = Boolean.parseBoolean(System.getProperty("slidescore.tileCache.enabled", "true"));
+	private static Path tileCacheDirectory = Paths.get(System.getProperty("slidescore.tileCache.dir",
+			Paths.get(System.getProperty("user.home"), ".slidescore", "qupath-tile-cache").toString()));
+	private static long tileCacheMaxSizeBytes = Long.getLong("slidescore.tileCache.maxSizeMB", 2048) * 1024 * 1024;
+
+	private static int connectTimeoutSeconds = Integer.getInteger("slidescore.http.connectTimeoutSeconds", 15);
+	private static int readTimeoutSeconds = Integer.getInteger("slidescore.http.readTimeoutSeconds", 60);
+	private static int maxConnectionsPerHost = Integer.getInteger("slidescore.http.maxConnectionsPerHost", 16);
+	private static long tileBatchWindowMillis = Long.getLong("slidescore.tiles.batchWindowMillis", 10);
+	private static int maxCoalescedTiles = Integer.getInteger("slidescore.tiles.maxCoalescedTiles", 4);
+	private static boolean prefetchEnabled = Boolean.parseBoolean(System.getProperty("slidescore.prefetch.enabled", "true"));
+	private static long prefetchBudgetBytes = Long.getLong("slidescore.prefetch.budgetMB", 16) * 1024 * 1024;
+	private static int prefetchThreads = Integer.getInteger("slidescore.prefetch.threads", 2);
+	private static Path metadataCacheDirectory = Paths.get(System.getProperty("slidescore.metadataCache.dir",
+			Paths.get(System.getProperty("user.home"), ".slidescore", "qupath-metadata-cache").toString()));
+	private static long metadataCacheValiditySeconds = Long.getLong("slidescore.metadataCache.validitySeconds", 24 * 60 * 60);
+	private static int maxRetries = Integer.getInteger("slidescore.http.maxRetries", 4);
+	private static boolean hedgingEnabled = Boolean.parseBoolean(System.getProperty("slidescore.hedging.enabled", "false"));
+	private static double hedgingPercentile = Double.parseDouble(System.getProperty("slidescore.hedging.percentile", "95"));
+	private static double hedgingBudgetPercent = Double.parseDouble(System.getProperty("slidescore.hedging.budgetPercent", "5"));
+	private static Path mirrorDirectory = Paths.get(System.getProperty("slidescore.mirror.dir",
+			Paths.get(System.getProperty("user.home"), ".slidescore", "qupath-mirrors").toString()));
+	private static int mirrorThreads = Integer.getInteger("slidescore.mirror.threads", 8);
+	private static long questionCacheSeconds = Long.getLong("slidescore.apiCache.questionSeconds", 300);
+
+	private SlideScoreSettings() {
+	}
+
+	/**
+	 * Whether tiles are stored in and read from the persistent on-disk tile cache.
+	 */
+	public static boolean isTileCacheEnabled() {
+		return tileCacheEnabled;
+	}
+
+	public static void setTileCacheEnabled(boolean enabled) {
+		tileCacheEnabled = enabled;
+	}
+
+	/**
+	 * Directory of the persistent on-disk tile cache.
+	 */
+	public static Path getTileCacheDirectory() {
+		return tileCacheDirectory;
+	}
+
+	/**
+	 * Change the tile cache directory, this only has an effect before the first tile is read.
+	 */
+	public static void setTileCacheDirectory(Path directory) {
+		tileCacheDirectory = directory;
+	}
+
+	/**
+	 * Maximum size of the on-disk tile cache, least recently used tiles are removed once it is exceeded.
+	 */
+	public static long getTileCacheMaxSizeBytes() {
+		return tileCacheMaxSizeBytes;
+	}
+
+	public static void setTileCacheMaxSizeBytes(long maxSizeBytes) {
+		tileCacheMaxSizeBytes = maxSizeBytes;
+	}
+
+	/**
+	 * Timeout for opening a connection to the Slide Score server.
+	 */
+	public static int getConnectTimeoutSeconds() {
+		return connectTimeoutSeconds;
+	}
+
+	/**
+	 * Change the connect timeout, this only has an effect before the first request is made.
+	 */
+	public static void setConnectTimeoutSeconds(int seconds) {
+		connectTimeoutSeconds = seconds;
+	}
+
+	/**
+	 * Timeout for a single request to complete once it has been sent.
+	 */
+	public static int getReadTimeoutSeconds() {
+		return readTimeoutSeconds;
+	}
+
+	public static void setReadTimeoutSeconds(int seconds) {
+		readTimeoutSeconds = seconds;
+	}
+
+	/**
+	 * Maximum number of concurrent requests to a single Slide Score server,
+	 * the actual number adapts to how fast the server responds up to this maximum.
+	 */
+	public static int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	/**
+	 * Change the per host concurrency cap, this only has an effect for hosts that haven't been contacted yet.
+	 */
+	public static void setMaxConnectionsPerHost(int max) {
+		maxConnectionsPerHost = max;
+	}
+
+	/**
+	 * How long tile requests are collected before adjacent tiles are merged into a single request, 0 disables merging.
+	 */
+	public static long getTileBatchWindowMillis() {
+		return tileBatchWindowMillis;
+	}
+
+	public static void setTileBatchWindowMillis(long millis) {
+		tileBatchWindowMillis = millis;
+	}
+
+	/**
+	 * Maximum number of tiles in each direction that are merged into a single region request.
+	 */
+	public static int getMaxCoalescedTiles() {
+		return maxCoalescedTiles;
+	}
+
+	public static void setMaxCoalescedTiles(int max) {
+		maxCoalescedTiles = max;
+	}
+
+	/**
+	 * Whether tiles around the viewed area are read ahead into the tile cache, this requires the tile cache.
+	 */
+	public static boolean isPrefetchEnabled() {
+		return prefetchEnabled;
+	}
+
+	public static void setPrefetchEnabled(boolean enabled) {
+		prefetchEnabled = enabled;
+	}
+
+	/**
+	 * Maximum number of bytes downloaded by a single round of read ahead.
+	 */
+	public static long getPrefetchBudgetBytes() {
+		return prefetchBudgetBytes;
+	}
+
+	public static void setPrefetchBudgetBytes(long budgetBytes) {
+		prefetchBudgetBytes = budgetBytes;
+	}
+
+	/**
+	 * Number of background threads reading ahead, shared by all slides. Can only be set with a system property.
+	 */
+	public static int getPrefetchThreads() {
+		return prefetchThreads;
+	}
+
+	/**
+	 * Directory where slide metadata is cached, null to only cache it in memory.
+	 */
+	public static Path getMetadataCacheDirectory() {
+		return metadataCacheDirectory;
+	}
+
+	public static void setMetadataCacheDirectory(Path directory) {
+		metadataCacheDirectory = directory;
+	}
+
+	/**
+	 * How long downloaded slide metadata is reused before it is downloaded again, 0 disables caching.
+	 */
+	public static long getMetadataCacheValiditySeconds() {
+		return metadataCacheValiditySeconds;
+	}
+
+	public static void setMetadataCacheValiditySeconds(long seconds) {
+		metadataCacheValiditySeconds = seconds;
+	}
+
+	/**
+	 * How many times a request is retried when the server is overloaded (429, 503 or timeout).
+	 */
+	public static int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public static void setMaxRetries(int retries) {
+		maxRetries = retries;
+	}
+
+	/**
+	 * Whether slow tile requests are sent a second time, using whichever copy answers first.
+	 */
+	public static boolean isHedgingEnabled() {
+		return hedgingEnabled;
+	}
+
+	public static void setHedgingEnabled(boolean enabled) {
+		hedgingEnabled = enabled;
+	}
+
+	/**
+	 * Percentile of the recent tile response times after which a request is sent a second time.
+	 */
+	public static double getHedgingPercentile() {
+		return hedgingPercentile;
+	}
+
+	public static void setHedgingPercentile(double percentile) {
+		hedgingPercentile = percentile;
+	}
+
+	/**
+	 * Maximum percentage of tile requests that are sent a second time.
+	 */
+	public static double getHedgingBudgetPercent() {
+		return hedgingBudgetPercent;
+	}
+
+	public static void setHedgingBudgetPercent(double percent) {
+		hedgingBudgetPercent = percent;
+	}
+
+	/**
+	 * Directory with the local mirrors of slides, see {@link SlideScoreMirror}.
+	 */
+	public static Path getMirrorDirectory() {
+		return mirrorDirectory;
+	}
+
+	public static void setMirrorDirectory(Path directory) {
+		mirrorDirectory = directory;
+	}
+
+	/**
+	 * Number of tiles downloaded in parallel when mirroring a slide.
+	 */
+	public static int getMirrorThreads() {
+		return mirrorThreads;
+	}
+
+	public static void setMirrorThreads(int threads) {
+		mirrorThreads = threads;
+	}
+
+	/**
+	 * How long the questions of a slide are used without asking Slide Score whether they changed.
+	 * Answers are always revalidated, see {@link SlideScoreResponseCache}.
+	 */
+	public static long getQuestionCacheSeconds() {
+		return questionCacheSeconds;
+	}
+
+	public static void setQuestionCacheSeconds(long seconds) {
+		questionCacheSeconds = seconds;
+	}
+}
@@ -0,0 +1,196 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.servers.TileRequest;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Collects tile requests that arrive within a short window and merges tiles that touch each other into a single region request.
+ * <p>
+ * The raw tile endpoint accepts any width and height, so when the viewer fills the screen a block of up to
+ * {@link SlideScoreSettings#getMaxCoalescedTiles()} x {@link SlideScoreSettings#getMaxCoalescedTiles()} tiles
+ * is fetched and decoded once and then split back into the separate tiles.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreTileBatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlideScoreTileBatcher.class);
+
+	/**
+	 * Reads a group of tiles of the same level that together form a rectangle.
+	 */
+	public interface TileReader {
+		BufferedImage[] readTiles(List<TileRequest> tiles) throws IOException;
+	}
+
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		var thread = new Thread(r, "slidescore-tile-batcher");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// No more fetches run at once than the concurrency limiter lets through to a server, the rest queue here
+	private static final ExecutorService fetchPool = Executors.newFixedThreadPool(Math.max(1, SlideScoreSettings.getMaxConnectionsPerHost()), r -> {
+		var thread = new Thread(r, "slidescore-tile-fetch");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static class PendingTile {
+		private final TileRequest request;
+		private final List<CompletableFuture<BufferedImage>> futures = new ArrayList<>(1);
+
+		private PendingTile(TileRequest request) {
+			this.request = request;
+		}
+	}
+
+	private final TileReader reader;
+	// Per level, tiles waiting for the current window to close, by tile x and y
+	private final Map<Integer, Map<List<Integer>, PendingTile>> pending = new HashMap<>();
+
+	public SlideScoreTileBatcher(TileReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Read a tile, possibly together with other tiles requested at the same time.
+	 *
+	 * @param request
+	 * @return
+	 * @throws IOException
+	 */
+	public BufferedImage readTile(TileRequest request) throws IOException {
+		long window = SlideScoreSettings.getTileBatchWindowMillis();
+		if (window <= 0 || SlideScoreSettings.getMaxCoalescedTiles() <= 1)
+			return reader.readTiles(Collections.singletonList(request))[0];
+
+		var future = new CompletableFuture<BufferedImage>();
+		synchronized (pending) {
+			int level = request.getLevel();
+			var tiles = pending.get(level);
+			if (tiles == null) {
+				tiles = new HashMap<>();
+				pending.put(level, tiles);
+				scheduler.schedule(() -> flush(level), window, TimeUnit.MILLISECONDS);
+			}
+			tiles.computeIfAbsent(List.of(request.getTileX(), request.getTileY()), k -> new PendingTile(request)).futures.add(future);
+		}
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for tile " + request);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Reading tile failed", e.getCause());
+		}
+	}
+
+	private void flush(int level) {
+		Map<List<Integer>, PendingTile> tiles;
+		synchronized (pending) {
+			tiles = pending.remove(level);
+		}
+		if (tiles == null || tiles.isEmpty())
+			return;
+		var blocks = coalesce(tiles.values(), SlideScoreSettings.getMaxCoalescedTiles());
+		if (blocks.size() < tiles.size())
+			logger.debug("Coalesced {} tiles on level {} into {} requests", tiles.size(), level, blocks.size());
+		for (var block : blocks)
+			fetchPool.execute(() -> read(block));
+	}
+
+	private void read(List<PendingTile> block) {
+		try {
+			complete(block, reader.readTiles(toRequests(block)));
+		} catch (Exception e) {
+			if (block.size() == 1) {
+				block.get(0).futures.forEach(f -> f.completeExceptionally(e));
+				return;
+			}
+			// The server may refuse large regions, fall back to single tiles
+			logger.debug("Reading {} tiles as one region failed, reading them separately: {}", block.size(), e.getLocalizedMessage());
+			for (var tile : block) {
+				try {
+					complete(Collections.singletonList(tile), reader.readTiles(toRequests(Collections.singletonList(tile))));
+				} catch (Exception e2) {
+					tile.futures.forEach(f -> f.completeExceptionally(e2));
+				}
+			}
+		}
+	}
+
+	private static List<TileRequest> toRequests(List<PendingTile> block) {
+		var requests = new ArrayList<TileRequest>(block.size());
+		for (var tile : block)
+			requests.add(tile.request);
+		return requests;
+	}
+
+	private static void complete(List<PendingTile> block, BufferedImage[] images) {
+		for (int i = 0; i < block.size(); i++) {
+			var img = images[i];
+			block.get(i).futures.forEach(f -> f.complete(img));
+		}
+	}
+
+	/**
+	 * Group tiles of one level into rectangular blocks of at most maxTiles x maxTiles tiles.
+	 * Tiles are first joined into horizontal runs, then runs with the same horizontal extent are stacked.
+	 */
+	private static List<List<PendingTile>> coalesce(Collection<PendingTile> tiles, int maxTiles) {
+		var sorted = new ArrayList<>(tiles);
+		sorted.sort(Comparator.<PendingTile>comparingInt(t -> t.request.getTileY()).thenComparingInt(t -> t.request.getTileX()));
+
+		// Horizontal runs of touching tiles with the same y and height
+		var runs = new ArrayList<List<PendingTile>>();
+		List<PendingTile> run = null;
+		for (var tile : sorted) {
+			var r = tile.request;
+			if (run != null && run.size() < maxTiles) {
+				var last = run.get(run.size() - 1).request;
+				if (last.getTileY() == r.getTileY() && last.getTileHeight() == r.getTileHeight()
+						&& last.getTileX() + last.getTileWidth() == r.getTileX()) {
+					run.add(tile);
+					continue;
+				}
+			}
+			run = new ArrayList<>();
+			run.add(tile);
+			runs.add(run);
+		}
+
+		// Stack runs that cover exactly the same columns
+		runs.sort(Comparator.<List<PendingTile>>comparingInt(t -> t.get(0).request.getTileX()).thenComparingInt(t -> t.get(0).request.getTileY()));
+		var blocks = new ArrayList<List<PendingTile>>();
+		List<PendingTile> block = null;
+		int blockRows = 0;
+		for (var current : runs) {
+			if (block != null && blockRows < maxTiles) {
+				var first = block.get(0).request;
+				var lastRow = block.get(block.size() - 1).request;
+				var start = current.get(0).request;
+				if (start.getTileX() == first.getTileX() && current.size() == block.size() / blockRows
+						&& lastRow.getTileY() + lastRow.getTileHeight() == start.getTileY()) {
+					block.addAll(current);
+					blockRows++;
+					continue;
+				}
+			}
+			block = new ArrayList<>(current);
+			blockRows = 1;
+			blocks.add(block);
+		}
+		return blocks;
+	}
+}
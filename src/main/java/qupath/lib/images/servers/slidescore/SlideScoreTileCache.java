@@ -0,0 +1,275 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Persistent, size-bounded cache of encoded Slide Score tiles on disk.
+ * <p>
+ * Tiles are stored per slide in a folder named after a hash of the slide identity (see {@link SlideScoreTileKey#getSlideId}),
+ * so cached tiles stay valid when the access token in the slide link changes.
+ * Once the cache grows over {@link SlideScoreSettings#getTileCacheMaxSizeBytes()} the least recently used tiles are removed.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreTileCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlideScoreTileCache.class);
+
+	private static SlideScoreTileCache instance;
+
+	// Resolution of the last access kept on disk
+	static final long TOUCH_INTERVAL_MILLIS = 60L * 60 * 1000;
+
+	// Encoding decoded tiles is kept off the reading threads
+	private static final ExecutorService encoder = Executors.newSingleThreadExecutor(r -> {
+		var thread = new Thread(r, "slidescore-tile-cache");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Path directory;
+	// Access ordered, so iteration starts at the least recently used tile
+	private final LinkedHashMap<Path, Long> index = new LinkedHashMap<>(1024, 0.75f, true);
+	private long totalBytes = 0;
+	private boolean initialized = false;
+
+	SlideScoreTileCache(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Get the cache shared by all Slide Score servers, or null if the tile cache is disabled.
+	 */
+	public static synchronized SlideScoreTileCache getInstance() {
+		if (!SlideScoreSettings.isTileCacheEnabled())
+			return null;
+		if (instance == null)
+			instance = new SlideScoreTileCache(SlideScoreSettings.getTileCacheDirectory());
+		return instance;
+	}
+
+	/**
+	 * Get the encoded bytes of a tile, or null if it isn't cached.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public byte[] get(SlideScoreTileKey key) {
+		Path path = getPath(key);
+		synchronized (this) {
+			ensureInitialized();
+			if (index.get(path) == null)
+				return null;
+		}
+		try {
+			byte[] bytes = Files.readAllBytes(path);
+			// Keep the order across restarts, the index is rebuilt from modification times. The index keeps the exact
+			// order while running, so the file is only touched when its time is too old to be close enough.
+			long now = System.currentTimeMillis();
+			if (now - Files.getLastModifiedTime(path).toMillis() > TOUCH_INTERVAL_MILLIS)
+				Files.setLastModifiedTime(path, FileTime.fromMillis(now));
+			return bytes;
+		} catch (NoSuchFileException e) {
+			remove(path);
+		} catch (IOException e) {
+			logger.debug("Unable to read cached tile {}: {}", key, e.getLocalizedMessage());
+			remove(path);
+		}
+		return null;
+	}
+
+	/**
+	 * Check whether a tile is in the cache, without updating its last access.
+	 */
+	public synchronized boolean contains(SlideScoreTileKey key) {
+		ensureInitialized();
+		return index.containsKey(getPath(key));
+	}
+
+	/**
+	 * Store the encoded bytes of a tile.
+	 *
+	 * @param key
+	 * @param bytes
+	 */
+	public void put(SlideScoreTileKey key, byte[] bytes) {
+		if (bytes == null || bytes.length == 0 || bytes.length > SlideScoreSettings.getTileCacheMaxSizeBytes())
+			return;
+		Path path = getPath(key);
+		try {
+			Files.createDirectories(path.getParent());
+			// Write to a temporary file first so that readers never see partially written tiles
+			Path temp = Files.createTempFile(path.getParent(), "tile", ".tmp");
+			try {
+				Files.write(temp, bytes);
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		} catch (IOException e) {
+			logger.debug("Unable to cache tile {}: {}", key, e.getLocalizedMessage());
+			return;
+		}
+		List<Path> evicted;
+		synchronized (this) {
+			ensureInitialized();
+			Long previous = index.put(path, (long) bytes.length);
+			totalBytes += bytes.length - (previous == null ? 0 : previous);
+			evicted = evictIfNeeded();
+		}
+		deleteFiles(evicted);
+	}
+
+	/**
+	 * Store a decoded tile, for tiles that were cut out of a larger region and have no encoded bytes of their own.
+	 * The tile is encoded in the background as a JPEG of the same quality as the region, so it takes about as much
+	 * space as a tile downloaded on its own.
+	 *
+	 * @param key
+	 * @param img
+	 * @param quality JPEG quality between 1 and 100, see {@link SlideScoreTileDecoder#getJpegQuality(byte[])}
+	 */
+	public void putImageAsync(SlideScoreTileKey key, BufferedImage img, int quality) {
+		encoder.execute(() -> {
+			ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+			try {
+				var param = writer.getDefaultWriteParam();
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(quality / 100f);
+				var stream = new ByteArrayOutputStream();
+				try (var imageStream = new MemoryCacheImageOutputStream(stream)) {
+					writer.setOutput(imageStream);
+					writer.write(null, new IIOImage(img, null, null), param);
+				}
+				put(key, stream.toByteArray());
+			} catch (IOException e) {
+				logger.debug("Unable to encode tile {}: {}", key, e.getLocalizedMessage());
+			} finally {
+				writer.dispose();
+			}
+		});
+	}
+
+	/**
+	 * Remove all cached tiles.
+	 */
+	public void clear() {
+		List<Path> paths;
+		synchronized (this) {
+			ensureInitialized();
+			paths = new ArrayList<>(index.keySet());
+			index.clear();
+			totalBytes = 0;
+		}
+		deleteFiles(paths);
+	}
+
+	/**
+	 * Current size of the cached tiles in bytes.
+	 */
+	public synchronized long getSizeBytes() {
+		ensureInitialized();
+		return totalBytes;
+	}
+
+	private synchronized void remove(Path path) {
+		Long size = index.remove(path);
+		if (size != null)
+			totalBytes -= size;
+	}
+
+	private List<Path> evictIfNeeded() {
+		long maxBytes = SlideScoreSettings.getTileCacheMaxSizeBytes();
+		if (totalBytes <= maxBytes)
+			return Collections.emptyList();
+		var evicted = new ArrayList<Path>();
+		var iterator = index.entrySet().iterator();
+		while (totalBytes > maxBytes && iterator.hasNext()) {
+			var entry = iterator.next();
+			totalBytes -= entry.getValue();
+			evicted.add(entry.getKey());
+			iterator.remove();
+		}
+		return evicted;
+	}
+
+	private static void deleteFiles(List<Path> paths) {
+		for (var path : paths) {
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				logger.debug("Unable to delete cached tile {}: {}", path, e.getLocalizedMessage());
+			}
+		}
+	}
+
+	/**
+	 * Rebuild the index from the files on disk, ordered by their last access.
+	 */
+	private void ensureInitialized() {
+		if (initialized)
+			return;
+		initialized = true;
+		if (!Files.isDirectory(directory))
+			return;
+		try (Stream<Path> stream = Files.walk(directory, 2)) {
+			var files = stream.filter(p -> p.toString().endsWith(".tile") && Files.isRegularFile(p))
+					.map(p -> {
+						try {
+							return Map.entry(p, Files.readAttributes(p, java.nio.file.attribute.BasicFileAttributes.class));
+						} catch (IOException e) {
+							return null;
+						}
+					})
+					.filter(Objects::nonNull)
+					.sorted(Comparator.comparing(e -> e.getValue().lastModifiedTime()))
+					.collect(Collectors.toList());
+			for (var file : files) {
+				index.put(file.getKey(), file.getValue().size());
+				totalBytes += file.getValue().size();
+			}
+			logger.info("Slide Score tile cache in {} contains {} tiles ({} MB)", directory, index.size(), totalBytes / (1024 * 1024));
+		} catch (IOException e) {
+			logger.warn("Unable to read Slide Score tile cache in {}: {}", directory, e.getLocalizedMessage());
+		}
+		deleteFiles(evictIfNeeded());
+	}
+
+	private Path getPath(SlideScoreTileKey key) {
+		return directory.resolve(hash(key.slideId)).resolve(key.getFileName());
+	}
+
+	static String hash(String value) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+			var sb = new StringBuilder();
+			for (byte b : digest)
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is always available, but don't fail caching if it isn't
+			return Integer.toHexString(value.hashCode());
+		}
+	}
+}
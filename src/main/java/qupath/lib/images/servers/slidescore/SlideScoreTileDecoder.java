@@ -0,0 +1,147 @@
+package qupath.lib.images.servers.slidescore;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.stream.IntStream;
+
+/**
+ * Decodes tiles from their encoded bytes into RGB images.
+ * <p>
+ * Decoding works from memory only (no ImageIO temp files) and keeps one JPEG reader per thread.
+ * Tiles that have the requested size are decoded straight into the returned image, only smaller edge tiles
+ * and images that can't be decoded into RGB are drawn onto the background color.
+ * <p>
+ * The returned images are always newly allocated, never taken from a pool: QuPath keeps them in its tile cache and
+ * hands them to viewers and scripts, so a pooled image could be overwritten while it is still in use.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreTileDecoder {
+
+	private static final ThreadLocal<ImageReader> jpegReaders = ThreadLocal.withInitial(
+			() -> ImageIO.getImageReadersByFormatName("jpeg").next());
+
+	private SlideScoreTileDecoder() {
+	}
+
+	/**
+	 * Decode a tile into an RGB image of the requested size
+	 *
+	 * @param bytes encoded tile, usually JPEG
+	 * @param width requested width
+	 * @param height requested height
+	 * @param backgroundColor color for the parts of the tile that aren't covered by the image, may be null
+	 * @return
+	 * @throws IOException
+	 */
+	public static BufferedImage decode(byte[] bytes, int width, int height, Color backgroundColor) throws IOException {
+		boolean isJpeg = bytes.length > 2 && (bytes[0] & 0xff) == 0xff && (bytes[1] & 0xff) == 0xd8;
+		ImageReader reader = isJpeg ? jpegReaders.get() : null;
+		try (ImageInputStream stream = new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes))) {
+			if (reader == null) {
+				var readers = ImageIO.getImageReaders(stream);
+				if (!readers.hasNext())
+					throw new IOException("Unable to decode tile");
+				reader = readers.next();
+			}
+			try {
+				reader.setInput(stream, true, true);
+				if (reader.getWidth(0) == width && reader.getHeight(0) == height) {
+					var dest = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+					var param = reader.getDefaultReadParam();
+					param.setDestination(dest);
+					try {
+						return reader.read(0, param);
+					} catch (IllegalArgumentException e) {
+						// Destination not supported for this image (e.g. grayscale or alpha). The stream is forward only
+						// and already read, so decode normally from a new one.
+						try (ImageInputStream retry = new MemoryCacheImageInputStream(new ByteArrayInputStream(bytes))) {
+							reader.setInput(retry, true, true);
+							return composite(reader.read(0), width, height, backgroundColor);
+						}
+					}
+				}
+				return composite(reader.read(0), width, height, backgroundColor);
+			} finally {
+				reader.setInput(null);
+				if (!isJpeg)
+					reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Estimate the quality a JPEG was encoded with, from the scaling of its luminance quantization table.
+	 * Uses the IJG quality scale, which is also what ImageIO's JPEG writer uses.
+	 *
+	 * @param bytes encoded tile
+	 * @return quality between 1 and 100, or -1 if the bytes aren't a JPEG with a luminance table
+	 */
+	public static int getJpegQuality(byte[] bytes) {
+		if (bytes.length < 4 || (bytes[0] & 0xff) != 0xff || (bytes[1] & 0xff) != 0xd8)
+			return -1;
+		int i = 2;
+		while (i + 4 <= bytes.length && (bytes[i] & 0xff) == 0xff) {
+			int marker = bytes[i + 1] & 0xff;
+			int length = ((bytes[i + 2] & 0xff) << 8) | (bytes[i + 3] & 0xff);
+			// Image data follows the start of scan, all tables come before it
+			if (marker == 0xda)
+				break;
+			if (marker == 0xdb) {
+				int j = i + 4;
+				int end = Math.min(i + 2 + length, bytes.length);
+				while (j < end) {
+					int precision = (bytes[j] & 0xff) >> 4;
+					int id = bytes[j] & 0x0f;
+					int size = precision == 0 ? 1 : 2;
+					if (j + 1 + 64 * size > end)
+						break;
+					if (id == 0) {
+						long sum = 0;
+						for (int k = 0; k < 64; k++) {
+							int offset = j + 1 + k * size;
+							sum += size == 1 ? bytes[offset] & 0xff : ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+						}
+						// Percentage the standard table was scaled by
+						double scale = sum * 100.0 / STANDARD_LUMINANCE_SUM;
+						int quality = (int) Math.round(scale <= 100 ? (200 - scale) / 2 : 5000 / scale);
+						return Math.max(1, Math.min(100, quality));
+					}
+					j += 1 + 64 * size;
+				}
+			}
+			i += 2 + length;
+		}
+		return -1;
+	}
+
+	// Sum of the luminance quantization table of the JPEG standard (Annex K), which IJG scales by quality
+	private static final int STANDARD_LUMINANCE_SUM = IntStream.of(
+			16, 11, 10, 16, 24, 40, 51, 61,
+			12, 12, 14, 19, 26, 58, 60, 55,
+			14, 13, 16, 24, 40, 57, 69, 56,
+			14, 17, 22, 29, 51, 87, 80, 62,
+			18, 22, 37, 56, 68, 109, 103, 77,
+			24, 35, 55, 64, 81, 104, 113, 92,
+			49, 64, 78, 87, 103, 121, 120, 101,
+			72, 92, 95, 98, 112, 100, 103, 99).sum();
+
+	private static BufferedImage composite(BufferedImage img, int width, int height, Color backgroundColor) {
+		BufferedImage img2 = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = img2.createGraphics();
+		if (backgroundColor != null) {
+			g2d.setColor(backgroundColor);
+			g2d.fillRect(0, 0, width, height);
+		}
+		g2d.drawImage(img, 0, 0, width, height, null);
+		g2d.dispose();
+		return img2;
+	}
+}
@@ -0,0 +1,79 @@
+package qupath.lib.images.servers.slidescore;
+
+import java.net.URI;
+import java.util.Objects;
+
+/**
+ * Identifies a single raw tile of a Slide Score slide, independent of the access token used to request it.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreTileKey {
+
+	public final String slideId;
+	public final int level;
+	public final int x;
+	public final int y;
+	public final int width;
+	public final int height;
+
+	public SlideScoreTileKey(String slideId, int level, int x, int y, int width, int height) {
+		this.slideId = slideId;
+		this.level = level;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Get the identity of a slide from its metadata URI.
+	 * <p>
+	 * Slide Score links look like {@code https://server/i/<imageId>/<token>/.../SlideScoreMetadata.json}, only the server
+	 * and the image ID are used so that the identity stays the same when the project is renewed and tokens change.
+	 *
+	 * @param uri
+	 * @return
+	 */
+	public static String getSlideId(URI uri) {
+		String authority = uri.getAuthority() == null ? "" : uri.getAuthority().toLowerCase();
+		String path = uri.getPath() == null ? "" : uri.getPath();
+		int idx = path.indexOf("/i/");
+		if (idx >= 0) {
+			String rest = path.substring(idx + 3);
+			int end = rest.indexOf('/');
+			return authority + "/i/" + (end >= 0 ? rest.substring(0, end) : rest);
+		}
+		// Unknown link format, fall back to the path without the query
+		return authority + path;
+	}
+
+	/**
+	 * Relative path of this tile within the slide's cache folder
+	 */
+	String getFileName() {
+		return level + "_" + x + "_" + y + "_" + width + "_" + height + ".tile";
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (!(o instanceof SlideScoreTileKey))
+			return false;
+		var other = (SlideScoreTileKey) o;
+		return level == other.level && x == other.x && y == other.y && width == other.width && height == other.height
+				&& slideId.equals(other.slideId);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(slideId, level, x, y, width, height);
+	}
+
+	@Override
+	public String toString() {
+		return slideId + " level " + level + " (" + x + "," + y + " " + width + "x" + height + ")";
+	}
+}
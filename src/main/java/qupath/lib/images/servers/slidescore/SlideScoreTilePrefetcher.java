@@ -0,0 +1,232 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.servers.TileRequest;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads ahead tiles the viewer is likely to need next and stores them in the {@link SlideScoreTileCache}.
+ * <p>
+ * The prefetcher watches the tile requests of a server. Requests that arrive close together are the tiles that became visible,
+ * comparing their position with the previous burst gives the pan direction, changes of level give the zoom trend.
+ * Once the requests settle, the next ring of tiles in the pan direction is fetched, followed by the same area one level
+ * up or down. Each round is limited to {@link SlideScoreSettings#getPrefetchBudgetBytes()} and is cancelled when
+ * the user moves somewhere else.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreTilePrefetcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(SlideScoreTilePrefetcher.class);
+
+	// Requests closer together than this are treated as one view update
+	private static final long BURST_MILLIS = 150;
+	// Wait this long after the last request before prefetching, so that prefetching doesn't compete with the viewer
+	private static final long SETTLE_MILLIS = 75;
+	// Moving further than this many tiles away from the previous view is a jump rather than a pan
+	private static final int JUMP_TILES = 4;
+
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		var thread = new Thread(r, "slidescore-prefetch-scheduler");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static final ExecutorService fetchPool = Executors.newFixedThreadPool(SlideScoreSettings.getPrefetchThreads(), r -> {
+		var thread = new Thread(r, "slidescore-prefetch");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+
+	private final SlideScoreImageServer server;
+	// Per level, tile requests by column and row
+	private final Map<Integer, Map<Long, TileRequest>> grids = new ConcurrentHashMap<>();
+
+	private int level = -1;
+	private int zoomTrend = 0;
+	private double directionX = 0, directionY = 0;
+	private int minCol, maxCol, minRow, maxRow;
+	private long lastRequestTime = 0;
+	private boolean hasPreviousBurst = false;
+	private boolean directionUpdated = false;
+	private double previousCenterX, previousCenterY;
+	private ScheduledFuture<?> scheduledRound;
+	private final List<Future<?>> queued = new ArrayList<>();
+
+	public SlideScoreTilePrefetcher(SlideScoreImageServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Record a tile request of the viewer.
+	 *
+	 * @param request
+	 */
+	public void observe(TileRequest request) {
+		if (!SlideScoreSettings.isPrefetchEnabled() || SlideScoreTileCache.getInstance() == null)
+			return;
+		int col = request.getTileX() / server.getPreferredTileWidth();
+		int row = request.getTileY() / server.getPreferredTileHeight();
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			if (request.getLevel() != level) {
+				zoomTrend = level >= 0 && Math.abs(request.getLevel() - level) == 1 ? request.getLevel() - level : 0;
+				level = request.getLevel();
+				startBurst(col, row, false);
+				cancel(true);
+			} else if (col < minCol - JUMP_TILES || col > maxCol + JUMP_TILES || row < minRow - JUMP_TILES || row > maxRow + JUMP_TILES) {
+				zoomTrend = 0;
+				startBurst(col, row, false);
+				cancel(true);
+			} else if (now - lastRequestTime > BURST_MILLIS) {
+				startBurst(col, row, true);
+			} else {
+				minCol = Math.min(minCol, col);
+				maxCol = Math.max(maxCol, col);
+				minRow = Math.min(minRow, row);
+				maxRow = Math.max(maxRow, row);
+			}
+			lastRequestTime = now;
+			if (scheduledRound != null)
+				scheduledRound.cancel(false);
+			scheduledRound = scheduler.schedule(this::prefetch, SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Cancel all prefetching of this server.
+	 */
+	public synchronized void cancel() {
+		if (scheduledRound != null)
+			scheduledRound.cancel(false);
+		cancel(true);
+	}
+
+	private void startBurst(int col, int row, boolean isPan) {
+		if (isPan) {
+			previousCenterX = (minCol + maxCol) / 2.0;
+			previousCenterY = (minRow + maxRow) / 2.0;
+		} else {
+			directionX = 0;
+			directionY = 0;
+		}
+		hasPreviousBurst = isPan;
+		directionUpdated = false;
+		minCol = maxCol = col;
+		minRow = maxRow = row;
+	}
+
+	private void updateDirection() {
+		if (!hasPreviousBurst || directionUpdated)
+			return;
+		double dx = (minCol + maxCol) / 2.0 - previousCenterX;
+		double dy = (minRow + maxRow) / 2.0 - previousCenterY;
+		// Smooth the direction so that one odd update doesn't turn the prefetching around
+		directionX = 0.5 * directionX + 0.5 * Math.signum(dx);
+		directionY = 0.5 * directionY + 0.5 * Math.signum(dy);
+		directionUpdated = true;
+	}
+
+	private void cancel(boolean interrupt) {
+		for (var future : queued)
+			future.cancel(interrupt);
+		queued.clear();
+	}
+
+	private void prefetch() {
+		var tileCache = SlideScoreTileCache.getInstance();
+		if (tileCache == null)
+			return;
+		var requests = new LinkedHashSet<TileRequest>();
+		int currentLevel;
+		synchronized (this) {
+			// Drop whatever is still queued from the previous round, the view has moved on
+			cancel(false);
+			updateDirection();
+			currentLevel = level;
+			int c0 = minCol, c1 = maxCol, r0 = minRow, r1 = maxRow;
+			if (directionX > 0.25)
+				addTiles(requests, level, c1 + 1, c1 + 1, r0 - 1, r1 + 1);
+			else if (directionX < -0.25)
+				addTiles(requests, level, c0 - 1, c0 - 1, r0 - 1, r1 + 1);
+			if (directionY > 0.25)
+				addTiles(requests, level, c0 - 1, c1 + 1, r1 + 1, r1 + 1);
+			else if (directionY < -0.25)
+				addTiles(requests, level, c0 - 1, c1 + 1, r0 - 1, r0 - 1);
+			if (requests.isEmpty()) {
+				// No clear direction, read the whole ring around the view
+				addTiles(requests, level, c0 - 1, c1 + 1, r0 - 1, r0 - 1);
+				addTiles(requests, level, c0 - 1, c1 + 1, r1 + 1, r1 + 1);
+				addTiles(requests, level, c0 - 1, c0 - 1, r0, r1);
+				addTiles(requests, level, c1 + 1, c1 + 1, r0, r1);
+			}
+			// Zooming in reads the next more detailed level, otherwise the overview level above
+			int zoomLevel = zoomTrend < 0 ? level - 1 : level + 1;
+			if (zoomLevel >= 0 && zoomLevel < server.nResolutions()) {
+				double scale = server.getDownsampleForResolution(level) / server.getDownsampleForResolution(zoomLevel);
+				int tw = server.getPreferredTileWidth();
+				int th = server.getPreferredTileHeight();
+				addTiles(requests, zoomLevel,
+						(int) Math.floor(c0 * scale), (int) Math.floor(((c1 + 1) * tw * scale - 1) / tw),
+						(int) Math.floor(r0 * scale), (int) Math.floor(((r1 + 1) * th * scale - 1) / th));
+			}
+
+			long budget = SlideScoreSettings.getPrefetchBudgetBytes();
+			var usedBytes = new AtomicLong();
+			for (var request : requests) {
+				var key = server.getTileKey(request);
+				if (tileCache.contains(key))
+					continue;
+				queued.add(fetchPool.submit(() -> {
+					if (usedBytes.get() >= budget || Thread.currentThread().isInterrupted())
+						return;
+					try {
+						// Tiles the viewer is reading end up in the cache anyway
+						if (tileCache.contains(key) || SlideScoreImageServer.isInFlight(key))
+							return;
+						byte[] bytes = server.fetchTile(key);
+						usedBytes.addAndGet(bytes.length);
+						tileCache.put(key, bytes);
+					} catch (Exception e) {
+						logger.debug("Prefetching {} failed: {}", key, e.getLocalizedMessage());
+					}
+				}));
+			}
+		}
+		logger.trace("Prefetching {} tiles around level {}", requests.size(), currentLevel);
+	}
+
+	private void addTiles(Set<TileRequest> requests, int level, int col0, int col1, int row0, int row1) {
+		var grid = getGrid(level);
+		for (int row = row0; row <= row1; row++) {
+			for (int col = col0; col <= col1; col++) {
+				var request = grid.get(getGridKey(col, row));
+				if (request != null)
+					requests.add(request);
+			}
+		}
+	}
+
+	private Map<Long, TileRequest> getGrid(int level) {
+		return grids.computeIfAbsent(level, l -> {
+			var grid = new HashMap<Long, TileRequest>();
+			int tw = server.getPreferredTileWidth();
+			int th = server.getPreferredTileHeight();
+			for (var request : server.getTileRequestManager().getTileRequestsForLevel(l)) {
+				if (request.getZ() == 0 && request.getT() == 0)
+					grid.put(getGridKey(request.getTileX() / tw, request.getTileY() / th), request);
+			}
+			return grid;
+		});
+	}
+
+	private static long getGridKey(int col, int row) {
+		return ((long) col << 32) | (row & 0xffffffffL);
+	}
+}
@@ -12,5 +12,9 @@ public class SlideScoreTmaPosition {
     public String name;
     public int x;
     public int y;
+    /**
+     * ID of the core in Slide Score, 0 if the server doesn't send it
+     */
+    public int id;
 
 }
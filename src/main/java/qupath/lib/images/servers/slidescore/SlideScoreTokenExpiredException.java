@@ -0,0 +1,29 @@
+package qupath.lib.images.servers.slidescore;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a slide is opened from a project whose Slide Score access tokens have expired.
+ * The project can be renewed on the Slide Score server.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreTokenExpiredException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String server;
+
+	public SlideScoreTokenExpiredException(String server) {
+		super("The Slide Score access tokens of this project have expired, renew the project at " + server + "/Studies/RenewProject");
+		this.server = server;
+	}
+
+	/**
+	 * Address of the Slide Score server that issued the tokens
+	 */
+	public String getServer() {
+		return server;
+	}
+}
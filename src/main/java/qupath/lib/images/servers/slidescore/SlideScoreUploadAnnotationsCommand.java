@@ -1,14 +1,14 @@
 package qupath.lib.images.servers.slidescore;
 
-import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.MultiPolygon;
-import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.IExitCodeGenerator;
+import picocli.CommandLine.Option;
 import qupath.lib.gui.QuPathGUI;
-import qupath.lib.gui.dialogs.Dialogs;
-import javafx.application.Platform;
 import qupath.lib.gui.extensions.Subcommand;
 import qupath.lib.gui.viewer.QuPathViewer;
 import qupath.lib.images.ImageData;
@@ -18,12 +18,26 @@ import qupath.lib.objects.PathROIObject;
 import qupath.lib.objects.TMACoreObject;
 import qupath.lib.objects.hierarchy.TMAGrid;
 import qupath.lib.plugins.workflow.DefaultScriptableWorkflowStep;
+import qupath.lib.projects.ProjectIO;
 import qupath.lib.roi.*;
-import qupath.lib.roi.interfaces.ROI;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.function.IntConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Command to import TMA cores' positions from a slide in Slide Score.
@@ -31,27 +45,103 @@ import java.util.stream.Collectors;
  * @author Jan Hudecek
  *
  */
-@Command(name = "slidescore-uploadannotations", description = "Upload selected annotations to an existing question on the original Slide Score slide", sortOptions = false)
-public class SlideScoreUploadAnnotationsCommand implements Runnable, Subcommand {
+@Command(name = "slidescore-uploadannotations", description = "Upload selected annotations to an existing question on the original Slide Score slide, or the annotations of all slides of a project", sortOptions = false)
+public class SlideScoreUploadAnnotationsCommand implements Runnable, Subcommand, IExitCodeGenerator {
 
     public interface TmaGetter{
         public String getAnswer(Collection<PathObject> annotations, TMACoreObject tma);
     }
 
     public static class TmaAnnoGetter {
+        private Collection<PathObject> indexedAnnotations;
+        private List<PathObject> objects;
+        private Geometry[] geometries;
+        private STRtree index;
+
+        public TmaAnnoGetter() {
+        }
+
+        /**
+         * Index the annotations by their bounds once, so assigning them to a core only tests the ones near the core.
+         * The index is used when {@link #getAnswer} is called with the same collection.
+         *
+         * @param annotations
+         */
+        public TmaAnnoGetter(Collection<PathObject> annotations) {
+            indexedAnnotations = annotations;
+            objects = new ArrayList<>(annotations);
+            geometries = new Geometry[objects.size()];
+            index = new STRtree();
+            for (int i = 0; i < geometries.length; i++) {
+                var roi = objects.get(i).getROI();
+                if (roi != null) {
+                    geometries[i] = roi.getGeometry();
+                    index.insert(geometries[i].getEnvelopeInternal(), i);
+                }
+            }
+            // Build now, queries from several threads must not build it concurrently
+            index.build();
+        }
+
         public String getAnswer( Collection<PathObject> annotations, TMACoreObject tma) throws Exception {
+            return annotationsToJson(getAnnotations(annotations, tma));
+        }
+
+        /**
+         * Get the annotations that lie within a core, in the order of the collection
+         */
+        List<PathObject> getAnnotations(Collection<PathObject> annotations, TMACoreObject tma) {
             var geom = tma.getROI().getGeometry();
-            var objects =  annotations.stream().filter(obj -> geom.contains(obj.getROI().getGeometry())).collect(Collectors.toList());
-            return annotationsToJson(objects);
+            if (index == null || annotations != indexedAnnotations)
+                return annotations.stream().filter(obj -> geom.contains(obj.getROI().getGeometry())).collect(Collectors.toList());
+
+            var core = PreparedGeometryFactory.prepare(geom);
+            var candidates = new ArrayList<Integer>();
+            index.query(geom.getEnvelopeInternal(), item -> candidates.add((Integer) item));
+            Collections.sort(candidates);
+            var contained = new ArrayList<PathObject>(candidates.size());
+            for (int i : candidates) {
+                if (core.contains(geometries[i]))
+                    contained.add(objects.get(i));
+            }
+            return contained;
         }
     }
 
     private static final Logger logger = LoggerFactory.getLogger(SlideScoreUploadAnnotationsCommand.class);
 
+    /**
+     * Metadata key of TMA cores with the ID of the core in Slide Score, set when the cores are imported
+     */
+    public static final String TMA_CORE_ID_KEY = "tmaCoreId";
+
     private QuPathGUI qupath;
 
+    @Option(names = {"-q", "--question"}, description = "Question the annotations are uploaded to, required with --project")
     private String presetQuestion;
 
+    @Option(names = {"-p", "--project"}, description = "Upload the annotations of all Slide Score images of this project")
+    private File projectFile;
+
+    @Option(names = {"-c", "--class"}, description = "Upload only annotations of this class, can be given several times")
+    private List<String> classNames;
+
+    @Option(names = {"-t", "--threads"}, description = "Number of images whose annotations are serialized at the same time")
+    private int threads = 4;
+
+    @Option(names = {"-u", "--uploads"}, description = "Maximum number of uploads to the same Slide Score server at the same time")
+    private int uploadsPerHost = 2;
+
+    @Option(names = {"--restart"}, description = "Upload all images again instead of continuing an interrupted upload")
+    private boolean restart;
+
+    // Upload stage per host, fed by the threads of the batch that serialize the annotations
+    private final Map<String, ExecutorService> uploaders = new ConcurrentHashMap<>();
+    // Bounds the payloads waiting for or being uploaded per host, so serializing doesn't run ahead of the uploads
+    private final Map<String, Semaphore> uploadSlots = new ConcurrentHashMap<>();
+    // Exit code of a run with --project
+    private int exitCode = 0;
+
     /**
      * Constructor.
      *
@@ -70,13 +160,129 @@ public class SlideScoreUploadAnnotationsCommand implements Runnable, Subcommand
 
     @Override
     public void run() {
+        if (qupath == null) {
+            runProject();
+            return;
+        }
         QuPathViewer viewer = qupath.getViewer();
         ImageData<BufferedImage> imageData = viewer.getImageData();
         run(imageData);
     }
 
-    private static String serializePoint(double x, double y) {
-        return "{\"x\":"+ (int)x + ", \"y\":" + (int)y+"}";
+    /**
+     * Exit code for the command line, non-zero if the project couldn't be processed or the upload failed for any image
+     */
+    @Override
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    private void runProject() {
+        if (projectFile == null || presetQuestion == null) {
+            logger.error("No project or question specified, use --project and --question");
+            exitCode = 2;
+            return;
+        }
+        try {
+            var project = ProjectIO.loadProject(projectFile, BufferedImage.class);
+            SlideScoreImageServer.setProjectSupplier(() -> project);
+            var batch = new SlideScoreProjectBatch(project, "uploadannotations", threads);
+            if (restart)
+                batch.restart();
+            var summary = batch.runAsync(entry -> {
+                var imageData = entry.readImageData();
+                if (!(imageData.getServer() instanceof SlideScoreImageServer)) {
+                    imageData.getServer().close();
+                    return CompletableFuture.completedFuture(null);
+                }
+                return uploadProjectEntry((SlideScoreImageServer) imageData.getServer(), imageData);
+            });
+            if (summary.failed > 0)
+                exitCode = 1;
+        } catch (Exception ex) {
+            logger.error("Uploading annotations failed", ex);
+            exitCode = 1;
+        } finally {
+            for (var uploader : uploaders.values())
+                uploader.shutdownNow();
+        }
+    }
+
+    /**
+     * Serialize the annotations of an image on the calling thread of the batch and hand them to the upload stage of
+     * the server. Waits only while the server's upload stage is full.
+     *
+     * @return completes with a description for the report, or null if there is nothing to upload. The server is
+     * closed once it completes.
+     */
+    private CompletableFuture<String> uploadProjectEntry(SlideScoreImageServer server, ImageData<BufferedImage> imageData) throws Exception {
+        SerializedAnswer answer = null;
+        boolean handedOff = false;
+        try {
+            var annotations = new ArrayList<PathObject>();
+            for (var annotation : imageData.getHierarchy().getAnnotationObjects()) {
+                var pathClass = annotation.getPathClass();
+                if (classNames == null || classNames.isEmpty() || (pathClass != null && classNames.contains(pathClass.getName())))
+                    annotations.add(annotation);
+            }
+            if (annotations.isEmpty())
+                return CompletableFuture.completedFuture(null);
+            if (mixesPointsAndShapes(annotations))
+                throw new IOException("Cannot upload points annotations and other types together, filter them by class");
+
+            var tmagrid = imageData.getHierarchy().getTMAGrid();
+            var payload = serializeAnnotations(tmagrid, annotations);
+            answer = payload;
+            String host = server.getURIs().iterator().next().getHost();
+            var future = submitUpload(host == null ? "" : host, () -> {
+                try {
+                    postAnnotations(server, presetQuestion, payload);
+                    return annotations.size() + " annotations uploaded" + (payload.isSpilled() ? " as a file" : "");
+                } finally {
+                    payload.delete();
+                    server.close();
+                }
+            });
+            handedOff = true;
+            return future;
+        } finally {
+            if (!handedOff) {
+                if (answer != null)
+                    answer.delete();
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Run an upload on the upload stage of a host, at most uploadsPerHost uploads run at the same time.
+     * Waits while as many payloads are queued as are being uploaded.
+     */
+    private CompletableFuture<String> submitUpload(String host, Callable<String> upload) throws InterruptedException {
+        int uploads = Math.max(1, uploadsPerHost);
+        var slots = uploadSlots.computeIfAbsent(host, h -> new Semaphore(2 * uploads));
+        slots.acquire();
+        var uploader = uploaders.computeIfAbsent(host, h -> Executors.newFixedThreadPool(uploads, r -> {
+            var thread = new Thread(r, "slidescore-upload");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        var future = new CompletableFuture<String>();
+        try {
+            uploader.execute(() -> {
+                try {
+                    future.complete(upload.call());
+                } catch (Exception ex) {
+                    future.completeExceptionally(ex);
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RuntimeException ex) {
+            slots.release();
+            throw ex;
+        }
+        return future;
     }
 
     /**
@@ -88,7 +294,7 @@ public class SlideScoreUploadAnnotationsCommand implements Runnable, Subcommand
      */
     public boolean submitSlideAnswer(String question, String answer) {
         QuPathViewer viewer = qupath.getViewer();
-        return submitAnswer(viewer.getImageData(), question,  answer, null);
+        return submitAnswer(viewer.getImageData(), question,  answer, null, 1);
     }
 
     /**
@@ -100,7 +306,20 @@ public class SlideScoreUploadAnnotationsCommand implements Runnable, Subcommand
      */
     public boolean submitTMAAnswer(String question, TmaGetter fGetAnswer) {
         QuPathViewer viewer = qupath.getViewer();
-        return submitAnswer(viewer.getImageData(), question,  null, fGetAnswer);
+        return submitAnswer(viewer.getImageData(), question,  null, fGetAnswer, 1);
+    }
+
+    /**
+     * Submit answer to a question for each core on a TMA slide, evaluating the callback for several cores at the same time
+     *
+     * @param question
+     * @param fGetAnswer callback that returns answer for core, it must be safe to call from several threads
+     * @param parallelism maximum number of cores evaluated at the same time
+     * @return
+     */
+    public boolean submitTMAAnswer(String question, TmaGetter fGetAnswer, int parallelism) {
+        QuPathViewer viewer = qupath.getViewer();
+        return submitAnswer(viewer.getImageData(), question,  null, fGetAnswer, parallelism);
     }
 
     /**
@@ -113,7 +332,23 @@ public class SlideScoreUploadAnnotationsCommand implements Runnable, Subcommand
      */
     public static boolean submitTMAAnswer(ImageData<BufferedImage> imageData, String question, TmaGetter fGetAnswer)
     {
-        return submitAnswer(imageData, question,  null, fGetAnswer);
+        return submitAnswer(imageData, question,  null, fGetAnswer, 1);
+    }
+
+    /**
+     * Submit answer to a question for each core on a TMA slide, evaluating the callback for several cores at the same time.
+     * The answer is assembled in row and column order whatever order the cores finish in. If the callback fails for
+     * any core nothing is uploaded and all failed cores are logged.
+     *
+     * @param imageData
+     * @param question
+     * @param fGetAnswer callback that returns answer for core, it must be safe to call from several threads
+     * @param parallelism maximum number of cores evaluated at the same time, e.g. the number of processors
+     * @return
+     */
+    public static boolean submitTMAAnswer(ImageData<BufferedImage> imageData, String question, TmaGetter fGetAnswer, int parallelism)
+    {
+        return submitAnswer(imageData, question,  null, fGetAnswer, parallelism);
     }
 
     /**
@@ -126,17 +361,17 @@ public class SlideScoreUploadAnnotationsCommand implements Runnable, Subcommand
      */
     public static boolean submitSlideAnswer(ImageData<BufferedImage> imageData, String question, String answer)
     {
-        return submitAnswer(imageData, question,  answer, null);
+        return submitAnswer(imageData, question,  answer, null, 1);
     }
 
-    private static boolean submitAnswer(ImageData<BufferedImage> imageData, String question, String answer, TmaGetter fGetAnswer) {
+    private static boolean submitAnswer(ImageData<BufferedImage> imageData, String question, String answer, TmaGetter fGetAnswer, int parallelism) {
         if (imageData == null) {
-            Platform.runLater(() -> Dialogs.showNoImageError("Slide Score answer upload"));
+            SlideScoreErrorReporter.getInstance().showNoImageError("Slide Score answer upload");
             return false;
         }
         ImageServer<BufferedImage> server = imageData.getServer();
         if (!(server instanceof SlideScoreImageServer)) {
-            Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score answer upload", "This command only works for Slide Score slides."));
+            SlideScoreErrorReporter.getInstance().showError("Slide Score answer upload", "This command only works for Slide Score slides.");
             return false;
         }
         var ssServer = (SlideScoreImageServer) server;
@@ -146,30 +381,100 @@ public class SlideScoreUploadAnnotationsCommand implements Runnable, Subcommand
             } else {
                 var tmagrid = imageData.getHierarchy().getTMAGrid();
                 if (tmagrid != null) {
+                    var coreAnswers = getCoreAnswers(tmagrid, fGetAnswer, parallelism);
+                    // Answers from the callback can be any text, so they are always posted as a form field
+                    var json = new StringBuilder();
                     //start answer with TMAs: \n<coords>\nanswer
-                    String json = "TMAs:";
+                    json.append("TMAs:");
                     for (var r = 0; r < tmagrid.getGridHeight(); r++) {
                         for (var c = 0; c < tmagrid.getGridWidth(); c++) {
                             var tma = tmagrid.getTMACore(r, c);
-                            var tmaAnnosJson = fGetAnswer.getAnswer(null, tma);
+                            var tmaAnnosJson = coreAnswers[r * tmagrid.getGridWidth() + c];
                             if (tmaAnnosJson.equals(""))
                                 continue;
-                            json += getTmaCoords(tma, tmagrid, r, c) + tmaAnnosJson;
+                            json.append(getTmaCoords(tma, tmagrid, r, c)).append(tmaAnnosJson);
                         }
                     }
-                    ssServer.postAnnotation(question, json);
+                    ssServer.postAnnotation(question, json.toString());
                 }
             }
             logger.info("Successfully uploaded answer");
             return true;
         } catch (Exception ex) {
-            Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score answer upload", "Answer upload failed, see log."));
+            SlideScoreErrorReporter.getInstance().showError("Slide Score answer upload", "Answer upload failed, see log.");
             logger.error(ex.getLocalizedMessage());
         }
         return false;
     }
 
 
+    /**
+     * Evaluate the callback for all cores of a grid
+     *
+     * @param tmagrid
+     * @param fGetAnswer
+     * @param parallelism maximum number of cores evaluated at the same time
+     * @return the answers in row and column order
+     * @throws IOException if the callback failed for any core, with the failures as suppressed exceptions
+     */
+    private static String[] getCoreAnswers(TMAGrid tmagrid, TmaGetter fGetAnswer, int parallelism) throws IOException {
+        int gridWidth = tmagrid.getGridWidth();
+        var answers = new String[tmagrid.getGridHeight() * gridWidth];
+        var errors = new ConcurrentSkipListMap<Integer, Exception>();
+        IntConsumer evaluate = i -> {
+            try {
+                answers[i] = fGetAnswer.getAnswer(null, tmagrid.getTMACore(i / gridWidth, i % gridWidth));
+            } catch (Exception e) {
+                // Groovy callbacks can throw checked exceptions without declaring them
+                errors.put(i, e);
+            }
+        };
+        if (parallelism <= 1) {
+            IntStream.range(0, answers.length).forEach(evaluate);
+        } else {
+            // A parallel stream started from within a pool runs on that pool, so at most parallelism cores are evaluated at once
+            var pool = new ForkJoinPool(parallelism);
+            try {
+                pool.submit(() -> IntStream.range(0, answers.length).parallel().forEach(evaluate)).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while getting the answers for the cores");
+            } catch (ExecutionException e) {
+                throw new IOException("Getting the answers for the cores failed", e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        if (!errors.isEmpty()) {
+            var ex = new IOException("Getting the answer failed for " + errors.size() + " of " + answers.length + " cores");
+            for (var error : errors.entrySet()) {
+                int r = error.getKey() / gridWidth, c = error.getKey() % gridWidth;
+                logger.error("Getting the answer for core " + tmagrid.getTMACore(r, c).getName() + " (row " + r + ", column " + c + ") failed", error.getValue());
+                ex.addSuppressed(error.getValue());
+            }
+            throw ex;
+        }
+        return answers;
+    }
+
+    /**
+     * Post annotations serialized by {@link #serializeAnnotations}. The parts of the answer were checked when they were
+     * serialized, so everything that can be known to fail fails before anything is posted.
+     */
+    private static void postAnnotations(SlideScoreImageServer server, String question, SerializedAnswer answer) throws IOException {
+        if (answer.slide != null) {
+            if (answer.slide.isSpilled())
+                server.postLargeAnnotation(question, answer.slide.getFile(), 0);
+            else
+                server.postAnnotation(question, answer.slide.toString());
+            return;
+        }
+        for (var form : answer.forms)
+            server.postAnnotation(question, form);
+        for (var core : answer.largeCores)
+            server.postLargeAnnotation(question, core.buffer.getFile(), core.id);
+    }
+
     private static String getTmaCoords(TMACoreObject tma, TMAGrid tmagrid, int r, int c) {
         String json = "";
         if (tma.getMetadataKeys().contains("rotate")) {
@@ -196,15 +501,19 @@ public class SlideScoreUploadAnnotationsCommand implements Runnable, Subcommand
     }
 
     public void run(ImageData<BufferedImage> imageData) {
+        if (qupath == null) {
+            SlideScoreErrorReporter.getInstance().showError("Slide Score annotation upload", "Without a GUI use submitAnnotations or --project.");
+            return;
+        }
         QuPathViewer viewer = qupath.getViewer();
         var annotations = viewer.getAllSelectedObjects();
         if (annotations.size() == 0)
         {
-            Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score annotation upload", "You need to select annotations before uploading them. Go to the 'Annotations' tab and click an annotation from the list to select it, ctrl+click or shift+click to add it to selection."));
+            SlideScoreErrorReporter.getInstance().showError("Slide Score annotation upload", "You need to select annotations before uploading them. Go to the 'Annotations' tab and click an annotation from the list to select it, ctrl+click or shift+click to add it to selection.");
             return;
         }
         if (imageData == null) {
-            Platform.runLater(() -> Dialogs.showNoImageError("Slide Score annotation upload"));
+            SlideScoreErrorReporter.getInstance().showNoImageError("Slide Score annotation upload");
             return;
         }
         submitAnnotations(imageData, annotations, presetQuestion);
@@ -220,63 +529,33 @@ public class SlideScoreUploadAnnotationsCommand implements Runnable, Subcommand
     public static void submitAnnotations(ImageData<BufferedImage> imageData, Collection<PathObject> annotations, String question) {
         ImageServer<BufferedImage> server = imageData.getServer();
         if (!(server instanceof SlideScoreImageServer)) {
-            Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score annotation upload", "This command only works for Slide Score slides."));
+            SlideScoreErrorReporter.getInstance().showError("Slide Score annotation upload", "This command only works for Slide Score slides.");
             return;
         }
         var ssServer = (SlideScoreImageServer) server;
         try {
             var annoQs = ssServer.getAnnotationShapeQuestions();
             if (question == null && annoQs.length == 0) {
-                Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score annotation upload", "No annotation type questions found."));
+                SlideScoreErrorReporter.getInstance().showError("Slide Score annotation upload", "No annotation type questions found.");
                 return;
             }
-            boolean hasPoints = false;
-            boolean hasNonPoints = false;
-            for (PathObject obj : annotations) {
-                if (!(obj instanceof PathROIObject))
-                    continue;
-                var anno = (PathROIObject)obj;
-                var roi = anno.getROI();
-                if (roi instanceof PointsROI) {
-                    hasPoints = true;
-                } else {
-                    hasNonPoints = true;
-                }
-            }
-            if (hasPoints && hasNonPoints) {
-                Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score annotation upload", "Cannot upload points annotations and other types together. Select only the points and upload it separately."));
+            if (mixesPointsAndShapes(annotations)) {
+                SlideScoreErrorReporter.getInstance().showError("Slide Score annotation upload", "Cannot upload points annotations and other types together. Select only the points and upload it separately.");
                 return;
             }
             String q;
             if (question == null) {
                 String firstq = annoQs[0].toString();
-                q = Dialogs.showChoiceDialog("Slide Score annotation upload", "Select question to upload the annotations to, your current answer will be overwritten.", annoQs, firstq);
+                q = SlideScoreErrorReporter.getInstance().showChoiceDialog("Slide Score annotation upload", "Select question to upload the annotations to, your current answer will be overwritten.", annoQs, firstq);
             } else
                 q = question;
-            String json;
             var tmagrid = imageData.getHierarchy().getTMAGrid();
-            if (tmagrid != null) {
-                var resGetter = new TmaAnnoGetter();
-                //start answer with TMAs: \n<coords>\nanswer
-                json = "TMAs:";
-                for (var r=0; r < tmagrid.getGridHeight(); r++) {
-                    for (var c=0; c < tmagrid.getGridWidth(); c++) {
-                        var tma = tmagrid.getTMACore(r, c);
-                        var tmaAnnosJson = resGetter.getAnswer(annotations, tma);
-                        if (tmaAnnosJson.equals("[]")) {
-                            //logger.info("No results for TMA Core row "+Integer.toString(r) +" col: "+Integer.toString(c) +" skipping");
-                            continue;
-                        }
-                        json += getTmaCoords(tma, tmagrid, r, c) + tmaAnnosJson;
-                    }
-                }
-            } else {
-                json = annotationsToJson(annotations);
+            var answer = serializeAnnotations(tmagrid, annotations);
+            try {
+                postAnnotations(ssServer, q, answer);
+            } finally {
+                answer.delete();
             }
-            if (tmagrid == null && json.length() > 100000)
-                ssServer.postLargeAnnotation(q, json);
-            else
-                ssServer.postAnnotation(q, json);
             logger.info("Successfully uploaded annotations");
             // Log to the workflow history so the command can be turned into a script
             if (q != null)
@@ -285,11 +564,182 @@ public class SlideScoreUploadAnnotationsCommand implements Runnable, Subcommand
                         "qupath.lib.images.servers.slidescore.SlideScoreUploadAnnotationsCommand.submitAnnotations(getCurrentImageData(), getSelectedObjects(), \""
                                 + q.replace("\\", "\\\\").replace("\"", "\\\"") + "\")"));
         } catch (Exception ex) {
-            Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score annotation upload", "Annotation upload failed, see log."));
+            SlideScoreErrorReporter.getInstance().showError("Slide Score annotation upload", "Annotation upload failed, see log.");
             logger.error(ex.getLocalizedMessage());
         }
     }
 
+    /**
+     * Whether the annotations contain both points and other shapes, they can't be uploaded together
+     */
+    static boolean mixesPointsAndShapes(Collection<PathObject> annotations) {
+        boolean hasPoints = false;
+        boolean hasNonPoints = false;
+        for (PathObject obj : annotations) {
+            if (!(obj instanceof PathROIObject))
+                continue;
+            var anno = (PathROIObject)obj;
+            var roi = anno.getROI();
+            if (roi instanceof PointsROI) {
+                hasPoints = true;
+            } else {
+                hasNonPoints = true;
+            }
+        }
+        return hasPoints && hasNonPoints;
+    }
+
+    /**
+     * Large answer of a TMA core, uploaded as a file with the core's Slide Score ID
+     */
+    static class LargeCoreAnswer {
+        final int id;
+        final SlideScoreAnswerBuffer buffer;
+
+        LargeCoreAnswer(int id, SlideScoreAnswerBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Annotations serialized as an answer by {@link #serializeAnnotations}, ready to be posted.
+     * The caller must {@link #delete()} it.
+     */
+    static class SerializedAnswer {
+        /**
+         * Answer of a slide, null on a TMA
+         */
+        SlideScoreAnswerBuffer slide;
+        /**
+         * Form fields with the small answers of the cores of a TMA, each "TMAs:" followed by the cores it holds
+         */
+        final List<String> forms = new ArrayList<>();
+        /**
+         * Answers of the cores of a TMA that are too large for a form field
+         */
+        final List<LargeCoreAnswer> largeCores = new ArrayList<>();
+
+        /**
+         * Whether any part of the answer is uploaded as a file
+         */
+        boolean isSpilled() {
+            return slide != null ? slide.isSpilled() : !largeCores.isEmpty();
+        }
+
+        void delete() {
+            if (slide != null)
+                slide.delete();
+            for (var core : largeCores)
+                core.buffer.delete();
+        }
+    }
+
+    /**
+     * Serialize annotations as an answer, see {@link #serializeAnnotations(TMAGrid, Collection, TMACoreObject)}
+     */
+    static SerializedAnswer serializeAnnotations(TMAGrid tmagrid, Collection<PathObject> annotations) throws IOException {
+        return serializeAnnotations(tmagrid, annotations, null);
+    }
+
+    /**
+     * Serialize annotations as an answer. On TMAs each annotation is assigned to the TMA core that envelopes it.
+     * <p>
+     * A large answer of a slide goes to a gzipped temp file as it is serialized and never exists as a string. On TMAs
+     * each core is serialized once into its own buffer. Small cores are collected into as few form fields as
+     * {@link SlideScoreAnswerBuffer#MAX_INLINE_LENGTH} allows, large ones are uploaded as files one core at a time,
+     * because the large annotation upload only takes a JSON annotation array. That needs the core's Slide Score ID,
+     * so if a large core has none this fails before anything is posted.
+     *
+     * @param tmagrid TMA grid of the image, or null
+     * @param annotations
+     * @param onlyCore serialize only the annotations of this core of the grid, or null for all cores
+     * @return the answer, the caller must {@link SerializedAnswer#delete()} it
+     * @throws IOException
+     */
+    static SerializedAnswer serializeAnnotations(TMAGrid tmagrid, Collection<PathObject> annotations, TMACoreObject onlyCore) throws IOException {
+        var answer = new SerializedAnswer();
+        try {
+            if (tmagrid == null) {
+                answer.slide = new SlideScoreAnswerBuffer();
+                try (var buffer = answer.slide) {
+                    SlideScoreAnnotationWriter.write(annotations, buffer);
+                }
+                return answer;
+            }
+            int gridWidth = tmagrid.getGridWidth();
+            var coreAnnotations = getCoreAnnotations(tmagrid, annotations, onlyCore);
+            var missingIds = new ArrayList<String>();
+            //start answer with TMAs: \n<coords>\nanswer
+            var form = new StringBuilder("TMAs:");
+            for (var r=0; r < tmagrid.getGridHeight(); r++) {
+                for (var c=0; c < gridWidth; c++) {
+                    var objects = coreAnnotations.get(r * gridWidth + c);
+                    if (objects.isEmpty()) {
+                        //logger.info("No results for TMA Core row "+Integer.toString(r) +" col: "+Integer.toString(c) +" skipping");
+                        continue;
+                    }
+                    var core = tmagrid.getTMACore(r, c);
+                    var buffer = new SlideScoreAnswerBuffer();
+                    try (buffer) {
+                        SlideScoreAnnotationWriter.write(objects, buffer);
+                    } catch (IOException | RuntimeException ex) {
+                        buffer.delete();
+                        throw ex;
+                    }
+                    if (buffer.isSpilled()) {
+                        var id = core.getMetadataValue(TMA_CORE_ID_KEY);
+                        if (id == null) {
+                            buffer.delete();
+                            missingIds.add(core.getName());
+                        } else {
+                            answer.largeCores.add(new LargeCoreAnswer(Integer.parseInt(id.toString()), buffer));
+                        }
+                        continue;
+                    }
+                    var coords = getTmaCoords(core, tmagrid, r, c);
+                    var json = buffer.toString();
+                    if (form.length() > "TMAs:".length() && form.length() + coords.length() + json.length() > SlideScoreAnswerBuffer.MAX_INLINE_LENGTH) {
+                        answer.forms.add(form.toString());
+                        form.setLength(0);
+                        form.append("TMAs:");
+                    }
+                    form.append(coords).append(json);
+                }
+            }
+            if (!missingIds.isEmpty())
+                throw new IOException("The annotations of TMA cores " + String.join(", ", missingIds)
+                        + " are too large to post at once and need the cores' Slide Score IDs, import the TMA cores again");
+            // An answer without any core is still posted, as before
+            if (form.length() > "TMAs:".length() || answer.largeCores.isEmpty())
+                answer.forms.add(form.toString());
+            return answer;
+        } catch (IOException | RuntimeException ex) {
+            answer.delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * Assign annotations to the TMA cores that envelope them
+     *
+     * @param onlyCore assign annotations only to this core, or null for all cores
+     * @return the annotations of each core in row and column order
+     */
+    private static List<List<PathObject>> getCoreAnnotations(TMAGrid tmagrid, Collection<PathObject> annotations, TMACoreObject onlyCore) {
+        var resGetter = new TmaAnnoGetter(annotations);
+        // Cores are independent, find their annotations in parallel
+        int gridWidth = tmagrid.getGridWidth();
+        return IntStream.range(0, tmagrid.getGridHeight() * gridWidth).parallel()
+                .mapToObj(i -> {
+                    var core = tmagrid.getTMACore(i / gridWidth, i % gridWidth);
+                    if (onlyCore != null && core.getID() != onlyCore.getID())
+                        return List.<PathObject>of();
+                    return resGetter.getAnnotations(annotations, core);
+                })
+                .collect(Collectors.toList());
+    }
+
     /**
      * Submit annotations as an answer under your account to a particular question in Slide Score for a particular TMA core
      *
@@ -301,7 +751,7 @@ public class SlideScoreUploadAnnotationsCommand implements Runnable, Subcommand
     public static void submitTMAAnnotations(ImageData<BufferedImage> imageData, Collection<PathObject> annotations, String question, TMACoreObject core) throws Exception  {
         ImageServer<BufferedImage> server = imageData.getServer();
         if (!(server instanceof SlideScoreImageServer)) {
-            Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score annotation upload", "This command only works for Slide Score slides."));
+            SlideScoreErrorReporter.getInstance().showError("Slide Score annotation upload", "This command only works for Slide Score slides.");
             return;
         }
         var ssServer = (SlideScoreImageServer) server;
@@ -314,162 +764,38 @@ public class SlideScoreUploadAnnotationsCommand implements Runnable, Subcommand
                     annoQs.add(terms[0]);
             }
             if (question == null && annoQs.size() == 0) {
-                Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score annotation upload", "No annotation type questions found."));
+                SlideScoreErrorReporter.getInstance().showError("Slide Score annotation upload", "No annotation type questions found.");
                 return;
             }
-            boolean hasPoints = false;
-            boolean hasNonPoints = false;
-            for (PathObject obj : annotations) {
-                if (!(obj instanceof PathROIObject))
-                    continue;
-                var anno = (PathROIObject)obj;
-                var roi = anno.getROI();
-                if (roi instanceof PointsROI) {
-                    hasPoints = true;
-                } else {
-                    hasNonPoints = true;
-                }
-            }
-            if (hasPoints && hasNonPoints) {
-                Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score annotation upload", "Cannot upload points annotations and other types together. Select only the points and upload it separately."));
+            if (mixesPointsAndShapes(annotations)) {
+                SlideScoreErrorReporter.getInstance().showError("Slide Score annotation upload", "Cannot upload points annotations and other types together. Select only the points and upload it separately.");
                 return;
             }
             String q;
             if (question == null) {
                 String[] annoqs =  annoQs.toArray(new String[0]);
                 String firstq = annoQs.get(0).toString();
-                q = Dialogs.showChoiceDialog("Slide Score annotation upload", "Select question to upload the annotations to, your current answer will be overwritten.", annoqs, firstq);
+                q = SlideScoreErrorReporter.getInstance().showChoiceDialog("Slide Score annotation upload", "Select question to upload the annotations to, your current answer will be overwritten.", annoqs, firstq);
             } else
                 q = question;
-            String json;
             var tmagrid = imageData.getHierarchy().getTMAGrid();
-            if (tmagrid != null) {
-                var resGetter = new TmaAnnoGetter();
-                //start answer with TMAs: \n<coords>\nanswer
-                json = "TMAs:";
-                for (var r=0; r < tmagrid.getGridHeight(); r++) {
-                    for (var c=0; c < tmagrid.getGridWidth(); c++) {
-                        var tma = tmagrid.getTMACore(r, c);
-                        if (tma.getID() != core.getID()) continue;
-                        var tmaAnnosJson = resGetter.getAnswer(annotations, tma);
-                        if (tmaAnnosJson.equals("[]")) {
-                            //logger.info("No results for TMA Core row "+Integer.toString(r) +" col: "+Integer.toString(c) +" skipping");
-                            continue;
-                        }
-                        json += getTmaCoords(tma, tmagrid, r, c) + tmaAnnosJson;
-                    }
-                }
-            } else {
-                json = annotationsToJson(annotations);
+            var answer = serializeAnnotations(tmagrid, annotations, tmagrid == null ? null : core);
+            try {
+                postAnnotations(ssServer, q, answer);
+            } finally {
+                answer.delete();
             }
-            ssServer.postAnnotation(q, json);
-            if (json.length() > 0)
-                Platform.runLater(() -> Dialogs.showInfoNotification("Slide Score Annotation Upload", "Uploaded annotations."));
+            SlideScoreErrorReporter.getInstance().showNotification("Slide Score Annotation Upload", "Uploaded annotations.");
 
             logger.info("Successfully uploaded annotations");
         } catch (Exception ex) {
-            Platform.runLater(() -> Dialogs.showErrorMessage("Slide Score Annotation Upload", "Annotation upload failed, see log."));
+            SlideScoreErrorReporter.getInstance().showError("Slide Score Annotation Upload", "Annotation upload failed, see log.");
             logger.error("Annotation upload failed", ex);
         }
     }
 
 
-    private static String annotationsToJson(Collection<PathObject> objects) throws Exception {
-        boolean hasGeometry = false;
-        StringJoiner mainsj = new StringJoiner(",");
-        for (PathObject obj : objects) {
-            if (!(obj instanceof PathROIObject))
-                continue;
-            var anno = (PathROIObject) obj;
-            var roi = anno.getROI();
-            if (roi instanceof EllipseROI) {
-                EllipseROI ellipse = (EllipseROI) roi;
-                mainsj.add("{ \"type\": \"ellipse\", \"center\": " +
-                    serializePoint(ellipse.getCentroidX(), ellipse.getCentroidY()) +
-                    ", \"size\": " + //subtract x2-x and y2-y
-                     serializePoint(ellipse.getBoundsWidth() / 2, ellipse.getBoundsHeight() / 2) +
-                    "}");
-            } else if (roi instanceof PointsROI) {
-                var points = (PointsROI)roi;
-                for(var p :points.getAllPoints()) {
-                    mainsj.add("{ \"type\": \"ellipse\", \"center\": " +
-                            serializePoint(p.getX(), p.getY()) +
-                            ", \"size\": " + //subtract x2-x and y2-y
-                            serializePoint(10, 10) +
-                            "}");
-                }
-            } else if (roi instanceof PolygonROI) {
-                mainsj.add("{ \"type\": \"polygon\", \"points\": [" +
-                        String.join(",", obj.getROI().getAllPoints().stream().map(c -> serializePoint(c.getX(), c.getY())).collect(Collectors.toList())) +
-                        "]}");
-            } else if (roi instanceof PolylineROI) {
-                mainsj.add("{ \"type\": \"polyline\", \"points\": [" +
-                        String.join(",", obj.getROI().getAllPoints().stream().map(c -> serializePoint(c.getX(), c.getY())).collect(Collectors.toList())) +
-                        "]}");
-            } else if (roi instanceof RectangleROI) {
-                RectangleROI rect = (RectangleROI) roi;
-                mainsj.add("{ \"type\": \"rect\", \"corner\": " +
-                    serializePoint(rect.getConvexHull().getBoundsX(), rect.getConvexHull().getBoundsY()) +
-                    ", \"size\": " +
-                    serializePoint(rect.getConvexHull().getBoundsWidth(), rect.getConvexHull().getBoundsHeight()) +
-                    "}");
-            }
-            else if (roi instanceof GeometryROI) {
-                hasGeometry = true;
-            }
-        }
-        if (hasGeometry) {
-            ArrayList<Coordinate[]> positives = new ArrayList<Coordinate[]>();
-            ArrayList<Coordinate[]> negatives = new ArrayList<Coordinate[]>();
-            for (PathObject obj : objects) {
-                ROI roi = obj.getROI();
-                if (roi == null)
-                    continue;
-                if (roi instanceof GeometryROI) {
-                    GeometryROI geo = (GeometryROI) roi;
-                    var geoGeo =geo.getGeometry();
-                    if (geoGeo instanceof Polygon) {
-                        Polygon polygon = (Polygon) geoGeo;
-                        extractPolygons(positives, polygon, negatives);
-                    } else if (geoGeo instanceof MultiPolygon)
-                    {
-                        var multiPolygon = ((MultiPolygon)geoGeo);
-                        for (int i = 0; i < multiPolygon.getNumGeometries(); i++) {
-                            var geometry = multiPolygon.getGeometryN(i);
-                            extractPolygons(positives, (Polygon)geometry, negatives);
-                        }
-                    }
-
-                }
-            }
-            if (positives.size() == 0 && negatives.size() == 0)
-                throw new Exception("Failed to find annotations to import. Too complex?");
-            StringJoiner sj = new StringJoiner(",");
-            String brushJson = "{ \"type\": \"brush\", \"positivePolygons\": [";
-            for (Coordinate[] coords: positives) {
-                sj.add("[" +
-                        String.join(",", Arrays.stream(coords).map(c -> serializePoint(c.getX(), c.getY())).collect(Collectors.toList())) +
-                        "]");
-            }
-            brushJson += sj.toString();
-            brushJson += "], \"negativePolygons\": [";
-            sj = new StringJoiner(",");
-            for (Coordinate[] coords: negatives) {
-                sj.add("[" +
-                    String.join(",", Arrays.stream(coords).map(c -> serializePoint(c.getX(), c.getY())).collect(Collectors.toList())) +
-                "]");
-            }
-            brushJson += sj.toString();
-            brushJson += "]}";
-            mainsj.add(brushJson);
-        }
-        return "[" + mainsj.toString() + "]";
-    }
-
-    private static void extractPolygons(ArrayList<Coordinate[]> positives, Polygon polygon, ArrayList<Coordinate[]> negatives) {
-        positives.add(polygon.getExteriorRing().getCoordinates());
-        for (int i = 0; i< polygon.getNumInteriorRing(); i++) {
-            negatives.add(polygon.getInteriorRingN(i).getCoordinates());
-        }
+    static String annotationsToJson(Collection<PathObject> objects) throws Exception {
+        return SlideScoreAnnotationWriter.toJson(objects);
     }
 }
@@ -0,0 +1,111 @@
+package qupath.lib.images.servers.slidescore;
+
+import io.tus.java.client.TusURLStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers unfinished uploads of large annotations, so they can be resumed after a failure.
+ * <p>
+ * For each upload, identified by a fingerprint of its content and destination, the store keeps the tus upload URL
+ * and the number of bytes uploaded so far. The store is only kept in memory: a partial upload belongs to the anno2
+ * record it was started for and can only be finished with that record's tokens, which are never written to disk.
+ * An upload that was interrupted by a restart of QuPath therefore starts over.
+ *
+ * @author Jan Hudecek
+ *
+ */
+public class SlideScoreUploadStore implements TusURLStore {
+
+	private static final SlideScoreUploadStore instance = new SlideScoreUploadStore();
+
+	private final Map<String, URL> urls = new ConcurrentHashMap<>();
+	private final Map<String, Long> offsets = new ConcurrentHashMap<>();
+
+	SlideScoreUploadStore() {
+	}
+
+	/**
+	 * Get the store shared by all Slide Score servers.
+	 */
+	public static SlideScoreUploadStore getInstance() {
+		return instance;
+	}
+
+	@Override
+	public void set(String fingerprint, URL url) {
+		urls.put(fingerprint, url);
+	}
+
+	@Override
+	public URL get(String fingerprint) {
+		return urls.get(fingerprint);
+	}
+
+	/**
+	 * Forget an upload, e.g. because it has finished.
+	 */
+	@Override
+	public void remove(String fingerprint) {
+		urls.remove(fingerprint);
+		offsets.remove(fingerprint);
+	}
+
+	/**
+	 * Check whether there is an unfinished upload with a fingerprint
+	 */
+	public boolean contains(String fingerprint) {
+		return urls.containsKey(fingerprint);
+	}
+
+	/**
+	 * Remember how many bytes of an upload the server has received
+	 */
+	public void setOffset(String fingerprint, long offset) {
+		if (contains(fingerprint))
+			offsets.put(fingerprint, offset);
+	}
+
+	/**
+	 * Number of bytes of an upload the server had received when it stopped, 0 if unknown
+	 */
+	public long getOffset(String fingerprint) {
+		return offsets.getOrDefault(fingerprint, 0L);
+	}
+
+	/**
+	 * Fingerprint of an upload, the same content uploaded to the same place has the same fingerprint.
+	 *
+	 * @param destination where the file is uploaded to, e.g. the slide and question
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static String getFingerprint(String destination, File file) throws IOException {
+		try {
+			var digest = MessageDigest.getInstance("SHA-1");
+			digest.update(destination.getBytes(StandardCharsets.UTF_8));
+			byte[] buffer = new byte[64 * 1024];
+			try (InputStream stream = Files.newInputStream(file.toPath())) {
+				int n;
+				while ((n = stream.read(buffer)) > 0)
+					digest.update(buffer, 0, n);
+			}
+			var sb = new StringBuilder();
+			for (byte b : digest.digest())
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
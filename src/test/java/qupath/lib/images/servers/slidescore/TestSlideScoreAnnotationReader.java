@@ -0,0 +1,142 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestSlideScoreAnnotationReader {
+
+	private static String square(double x, double y, double size) {
+		return "[{\"x\":" + x + ",\"y\":" + y + "},{\"x\":" + (x + size) + ",\"y\":" + y + "},{\"x\":" + (x + size) + ",\"y\":"
+				+ (y + size) + "},{\"x\":" + x + ",\"y\":" + (y + size) + "}]";
+	}
+
+	@Test
+	public void testPoints() throws IOException {
+		var rois = SlideScoreAnnotationReader.fromJson("[{\"x\":1,\"y\":2},{\"x\":3,\"y\":4,\"label\":\"ignored\"}]");
+		assertEquals(1, rois.size());
+		assertTrue(rois.get(0).isPoint());
+		assertEquals(2, rois.get(0).getNumPoints());
+	}
+
+	@Test
+	public void testShapes() throws IOException {
+		var rois = SlideScoreAnnotationReader.fromJson("["
+				+ "{\"type\":\"rect\",\"corner\":{\"x\":10,\"y\":20},\"size\":{\"x\":30,\"y\":40},\"modifiedOn\":\"2024-01-01\"},"
+				+ "{\"type\":\"ellipse\",\"center\":{\"x\":50,\"y\":50},\"size\":{\"x\":10,\"y\":5}},"
+				+ "{\"type\":\"polygon\",\"points\":" + square(0, 0, 100) + "},"
+				+ "{\"x\":7,\"y\":8}"
+				+ "]");
+		assertEquals(4, rois.size());
+		// Points come first
+		assertTrue(rois.get(0).isPoint());
+
+		var rect = rois.get(1);
+		assertEquals(10, rect.getBoundsX(), 1e-9);
+		assertEquals(20, rect.getBoundsY(), 1e-9);
+		assertEquals(30, rect.getBoundsWidth(), 1e-9);
+		assertEquals(40, rect.getBoundsHeight(), 1e-9);
+
+		// Slide Score sends the radii of ellipses
+		var ellipse = rois.get(2);
+		assertEquals(40, ellipse.getBoundsX(), 1e-9);
+		assertEquals(45, ellipse.getBoundsY(), 1e-9);
+		assertEquals(20, ellipse.getBoundsWidth(), 1e-9);
+		assertEquals(10, ellipse.getBoundsHeight(), 1e-9);
+
+		assertEquals(10_000, rois.get(3).getGeometry().getArea(), 1e-6);
+	}
+
+	@Test
+	public void testBrush() throws IOException {
+		var rois = SlideScoreAnnotationReader.fromJson("[{\"type\":\"brush\","
+				+ "\"positivePolygons\":[" + square(0, 0, 100) + "," + square(50, 0, 100) + "," + square(500, 500, 10) + "],"
+				+ "\"negativePolygons\":[" + square(25, 25, 50) + "," + square(1000, 1000, 10) + "]}]");
+		assertEquals(1, rois.size());
+		var geometry = rois.get(0).getGeometry();
+		// Two overlapping squares with a hole, and a separate island
+		assertEquals(150 * 100 - 50 * 50 + 10 * 10, geometry.getArea(), 1e-6);
+		assertEquals(2, geometry.getNumGeometries());
+	}
+
+	@Test
+	public void testBrushWithoutArea() throws IOException {
+		assertTrue(SlideScoreAnnotationReader.fromJson("[{\"type\":\"brush\",\"positivePolygons\":[],\"negativePolygons\":null}]").isEmpty());
+		assertTrue(SlideScoreAnnotationReader.fromJson("[{\"type\":\"brush\",\"positivePolygons\":[" + square(0, 0, 10)
+				+ "],\"negativePolygons\":[" + square(-10, -10, 100) + "]}]").isEmpty());
+	}
+
+	@Test
+	public void testUnknownTypeIsSkipped() throws IOException {
+		var rois = SlideScoreAnnotationReader.fromJson("[{\"type\":\"ruler\",\"points\":" + square(0, 0, 10) + "},"
+				+ "{\"type\":\"polygon\",\"points\":" + square(0, 0, 10) + "}]");
+		assertEquals(1, rois.size());
+		assertEquals(100, rois.get(0).getGeometry().getArea(), 1e-6);
+	}
+
+	@Test
+	public void testInvalidAnswers() {
+		assertThrows(IOException.class, () -> SlideScoreAnnotationReader.fromJson("{\"x\":1}"));
+		assertThrows(IOException.class, () -> SlideScoreAnnotationReader.fromJson("[{\"x\":\"one\",\"y\":2}]"));
+		assertThrows(IOException.class, () -> SlideScoreAnnotationReader.fromJson("[{\"type\":\"rect\",\"size\":{\"x\":1,\"y\":1}}]"));
+		assertThrows(IOException.class, () -> SlideScoreAnnotationReader.fromJson("[{\"x\":1,\"y\":2}"));
+	}
+
+	@Test
+	public void testLargeAnswerIsStreamed() throws IOException {
+		int n = 200_000;
+		// Produces the answer while it is read, it is never held as a whole
+		var reader = new Reader() {
+			private final StringBuilder buffer = new StringBuilder("[{\"type\":\"polygon\",\"points\":[");
+			private int next = 0;
+			private int position = 0;
+			private boolean closed = false;
+
+			@Override
+			public int read(char[] chars, int offset, int length) {
+				if (position == buffer.length()) {
+					buffer.setLength(0);
+					position = 0;
+					if (next > n)
+						return -1;
+					if (next == n)
+						buffer.append("]}]");
+					else {
+						double angle = 2 * Math.PI * next / n;
+						buffer.append(next == 0 ? "" : ",")
+								.append("{\"x\":").append(1000 + 1000 * Math.cos(angle))
+								.append(",\"y\":").append(1000 + 1000 * Math.sin(angle)).append('}');
+					}
+					next++;
+				}
+				int count = Math.min(length, buffer.length() - position);
+				buffer.getChars(position, position + count, chars, offset);
+				position += count;
+				return count;
+			}
+
+			@Override
+			public void close() {
+				closed = true;
+			}
+		};
+		var rois = SlideScoreAnnotationReader.read(reader);
+		assertFalse(reader.closed);
+		assertEquals(1, rois.size());
+		assertEquals(n, rois.get(0).getNumPoints());
+		assertEquals(Math.PI * 1000 * 1000, rois.get(0).getGeometry().getArea(), 1.0);
+	}
+
+	@Test
+	public void testReadFromReader() throws IOException {
+		var rois = SlideScoreAnnotationReader.read(new StringReader("[{\"type\":\"polygon\",\"points\":" + square(0, 0, 10) + "}]"));
+		assertEquals(1, rois.size());
+	}
+}
@@ -0,0 +1,91 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestSlideScoreAnswerSync {
+
+	private static SlideScoreAnswer answer(String question, String email, String value, Integer color) {
+		var answer = new SlideScoreAnswer();
+		answer.question = question;
+		answer.email = email;
+		answer.value = value;
+		answer.color = color;
+		return answer;
+	}
+
+	@Test
+	public void testKey() {
+		assertEquals("Tumor;user@example.com", SlideScoreAnswerSync.getKey(answer("Tumor", "user@example.com", "[]", null)));
+	}
+
+	@Test
+	public void testUnchangedAnswer() {
+		var imageData = new ImageData<BufferedImage>(null);
+		var answer = answer("Tumor", "user@example.com", "[{\"x\":1,\"y\":2}]", 0xff0000);
+		assertFalse(SlideScoreAnswerSync.isUnchanged(imageData, answer));
+		SlideScoreAnswerSync.record(imageData, answer);
+		assertTrue(SlideScoreAnswerSync.isUnchanged(imageData, answer));
+		// The same content downloaded again
+		assertTrue(SlideScoreAnswerSync.isUnchanged(imageData, answer("Tumor", "user@example.com", "[{\"x\":1,\"y\":2}]", 0xff0000)));
+	}
+
+	@Test
+	public void testChangedAnswer() {
+		var imageData = new ImageData<BufferedImage>(null);
+		SlideScoreAnswerSync.record(imageData, answer("Tumor", "user@example.com", "[{\"x\":1,\"y\":2}]", 0xff0000));
+		assertFalse(SlideScoreAnswerSync.isUnchanged(imageData, answer("Tumor", "user@example.com", "[{\"x\":1,\"y\":3}]", 0xff0000)));
+		assertFalse(SlideScoreAnswerSync.isUnchanged(imageData, answer("Tumor", "user@example.com", "[{\"x\":1,\"y\":2}]", 0x00ff00)));
+		assertFalse(SlideScoreAnswerSync.isUnchanged(imageData, answer("Tumor", "user@example.com", "[{\"x\":1,\"y\":2}]", null)));
+		// Answers of other questions or accounts are tracked separately
+		assertFalse(SlideScoreAnswerSync.isUnchanged(imageData, answer("Stroma", "user@example.com", "[{\"x\":1,\"y\":2}]", 0xff0000)));
+		assertFalse(SlideScoreAnswerSync.isUnchanged(imageData, answer("Tumor", "other@example.com", "[{\"x\":1,\"y\":2}]", 0xff0000)));
+	}
+
+	@Test
+	public void testImportedKeys() {
+		var imageData = new ImageData<BufferedImage>(null);
+		imageData.setProperty("unrelated", "value");
+		var tumor = answer("Tumor", "user@example.com", "[]", null);
+		var stroma = answer("Stroma", "user@example.com", "[]", null);
+		SlideScoreAnswerSync.record(imageData, tumor);
+		SlideScoreAnswerSync.record(imageData, stroma);
+		assertEquals(Set.of("Tumor;user@example.com", "Stroma;user@example.com"), SlideScoreAnswerSync.getImportedKeys(imageData));
+
+		SlideScoreAnswerSync.forget(imageData, SlideScoreAnswerSync.getKey(tumor));
+		assertEquals(Set.of("Stroma;user@example.com"), SlideScoreAnswerSync.getImportedKeys(imageData));
+		assertFalse(SlideScoreAnswerSync.isUnchanged(imageData, tumor));
+	}
+
+	@Test
+	public void testRemoveImported() {
+		var imageData = new ImageData<BufferedImage>(null);
+		var hierarchy = imageData.getHierarchy();
+		var tumor = answer("Tumor", "user@example.com", "[]", null);
+		var stroma = answer("Stroma", "user@example.com", "[]", null);
+		var tumorAnnotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(0, 0, 10, 10, ImagePlane.getDefaultPlane()));
+		var stromaAnnotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(20, 0, 10, 10, ImagePlane.getDefaultPlane()));
+		var drawnAnnotation = PathObjects.createAnnotationObject(ROIs.createRectangleROI(40, 0, 10, 10, ImagePlane.getDefaultPlane()));
+		SlideScoreAnswerSync.tag(tumorAnnotation, tumor);
+		SlideScoreAnswerSync.tag(stromaAnnotation, stroma);
+		hierarchy.addObjects(List.of(tumorAnnotation, stromaAnnotation, drawnAnnotation));
+
+		SlideScoreAnswerSync.removeImported(imageData, Set.of(SlideScoreAnswerSync.getKey(tumor)));
+		var remaining = hierarchy.getAnnotationObjects();
+		assertEquals(2, remaining.size());
+		assertFalse(remaining.contains(tumorAnnotation));
+		assertTrue(remaining.contains(stromaAnnotation));
+		assertTrue(remaining.contains(drawnAnnotation));
+	}
+}
@@ -0,0 +1,110 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestSlideScoreConcurrencyLimiter {
+
+	private static void complete(SlideScoreConcurrencyLimiter limiter, SlideScoreConcurrencyLimiter.Outcome outcome,
+			long latencyMillis) throws InterruptedIOException {
+		limiter.acquire();
+		limiter.release(outcome, latencyMillis);
+	}
+
+	@Test
+	public void testStartsAtHalfTheMaximum() {
+		assertEquals(8, new SlideScoreConcurrencyLimiter("host", 16).getLimit());
+		assertEquals(1, new SlideScoreConcurrencyLimiter("host", 1).getLimit());
+		assertEquals(1, new SlideScoreConcurrencyLimiter("host", 0).getLimit());
+	}
+
+	@Test
+	public void testAdditiveIncrease() throws Exception {
+		var limiter = new SlideScoreConcurrencyLimiter("host", 16);
+		// About one request more per limit's worth of successes
+		for (int i = 0; i < 9; i++)
+			complete(limiter, SlideScoreConcurrencyLimiter.Outcome.SUCCESS, 10);
+		assertEquals(9, limiter.getLimit());
+		for (int i = 0; i < 1000; i++)
+			complete(limiter, SlideScoreConcurrencyLimiter.Outcome.SUCCESS, 10);
+		assertEquals(16, limiter.getLimit());
+	}
+
+	@Test
+	public void testMultiplicativeDecrease() throws Exception {
+		var limiter = new SlideScoreConcurrencyLimiter("host", 16);
+		complete(limiter, SlideScoreConcurrencyLimiter.Outcome.OVERLOADED, -1);
+		assertEquals(4, limiter.getLimit());
+		// Responses to requests sent before the decrease don't decrease it again
+		complete(limiter, SlideScoreConcurrencyLimiter.Outcome.OVERLOADED, -1);
+		assertEquals(4, limiter.getLimit());
+		Thread.sleep(150);
+		complete(limiter, SlideScoreConcurrencyLimiter.Outcome.OVERLOADED, -1);
+		assertEquals(2, limiter.getLimit());
+		Thread.sleep(150);
+		complete(limiter, SlideScoreConcurrencyLimiter.Outcome.OVERLOADED, -1);
+		Thread.sleep(150);
+		complete(limiter, SlideScoreConcurrencyLimiter.Outcome.OVERLOADED, -1);
+		assertEquals(1, limiter.getLimit());
+	}
+
+	@Test
+	public void testSlowTileDecreases() throws Exception {
+		var limiter = new SlideScoreConcurrencyLimiter("host", 20);
+		complete(limiter, SlideScoreConcurrencyLimiter.Outcome.SUCCESS, 20);
+		int limit = limiter.getLimit();
+		// Well above twice the best response time
+		complete(limiter, SlideScoreConcurrencyLimiter.Outcome.SUCCESS, 500);
+		assertTrue(limiter.getLimit() < limit, "Slow tile should reduce the limit");
+	}
+
+	@Test
+	public void testOtherRequestsOnlyIncrease() throws Exception {
+		var limiter = new SlideScoreConcurrencyLimiter("host", 20);
+		complete(limiter, SlideScoreConcurrencyLimiter.Outcome.SUCCESS, 20);
+		int limit = limiter.getLimit();
+		// Regions and metadata take longer, their response times aren't compared with those of tiles
+		for (int i = 0; i < 20; i++)
+			complete(limiter, SlideScoreConcurrencyLimiter.Outcome.SUCCESS, -1);
+		assertTrue(limiter.getLimit() > limit);
+		limit = limiter.getLimit();
+		for (int i = 0; i < 20; i++)
+			complete(limiter, SlideScoreConcurrencyLimiter.Outcome.IGNORED, -1);
+		assertEquals(limit, limiter.getLimit());
+	}
+
+	@Test
+	public void testAcquireWaitsForSlot() throws Exception {
+		var limiter = new SlideScoreConcurrencyLimiter("host", 2);
+		limiter.acquire();
+		var acquired = new AtomicBoolean();
+		var started = new CountDownLatch(1);
+		var done = new CountDownLatch(1);
+		var thread = new Thread(() -> {
+			try {
+				started.countDown();
+				limiter.acquire();
+				acquired.set(true);
+				limiter.release(SlideScoreConcurrencyLimiter.Outcome.IGNORED, -1);
+			} catch (InterruptedIOException e) {
+				// Fails the test through acquired
+			}
+			done.countDown();
+		});
+		thread.setDaemon(true);
+		thread.start();
+		started.await();
+		assertFalse(done.await(200, TimeUnit.MILLISECONDS), "Request over the limit should wait");
+		limiter.release(SlideScoreConcurrencyLimiter.Outcome.IGNORED, -1);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue(acquired.get());
+	}
+}
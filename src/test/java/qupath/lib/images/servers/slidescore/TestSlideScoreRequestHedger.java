@@ -0,0 +1,123 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestSlideScoreRequestHedger {
+
+	private static final URI uri = URI.create("https://slidescore.example.com/i/1/token/_files/0/0_0.jpeg");
+
+	private boolean enabled;
+	private double percentile;
+	private double budget;
+
+	@BeforeEach
+	public void saveSettings() {
+		enabled = SlideScoreSettings.isHedgingEnabled();
+		percentile = SlideScoreSettings.getHedgingPercentile();
+		budget = SlideScoreSettings.getHedgingBudgetPercent();
+		SlideScoreSettings.setHedgingEnabled(true);
+		SlideScoreSettings.setHedgingPercentile(95);
+		SlideScoreSettings.setHedgingBudgetPercent(10);
+	}
+
+	@AfterEach
+	public void restoreSettings() {
+		SlideScoreSettings.setHedgingEnabled(enabled);
+		SlideScoreSettings.setHedgingPercentile(percentile);
+		SlideScoreSettings.setHedgingBudgetPercent(budget);
+	}
+
+	private static SlideScoreRequestHedger.Request request(SlideScoreRequestHedger hedger, URI uri, AtomicInteger sent, long millis) {
+		return request(hedger, uri, sent, millis, millis);
+	}
+
+	/**
+	 * A request that takes some time and reports a response time, like the HTTP client does
+	 */
+	private static SlideScoreRequestHedger.Request request(SlideScoreRequestHedger hedger, URI uri, AtomicInteger sent,
+														   long millis, long responseMillis) {
+		return () -> {
+			sent.incrementAndGet();
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			hedger.addResponseTime(uri, responseMillis);
+			return new byte[] {1};
+		};
+	}
+
+	@Test
+	public void testHedgesWithinBudget() throws Exception {
+		var hedger = new SlideScoreRequestHedger();
+		var sent = new AtomicInteger();
+		// Fast requests to learn what a normal response time is
+		for (int i = 0; i < 30; i++)
+			assertArrayEquals(new byte[] {1}, hedger.send(uri, request(hedger, uri, sent, 0)));
+
+		// All of these are slower than usual, but only 10% of all requests may be sent twice
+		for (int i = 0; i < 30; i++)
+			assertArrayEquals(new byte[] {1}, hedger.send(uri, request(hedger, uri, sent, 50)));
+		int hedged = sent.get() - 60;
+		assertTrue(hedged >= 1, "Slow requests should be hedged");
+		assertTrue(hedged <= 0.1 * 60, "Hedged " + hedged + " of 60 requests");
+	}
+
+	@Test
+	public void testResponseTimesArePerHost() throws Exception {
+		var hedger = new SlideScoreRequestHedger();
+		for (int i = 0; i < 30; i++)
+			hedger.send(uri, request(hedger, uri, new AtomicInteger(), 0));
+		// Another host has no response times yet, so nothing is slow there
+		var other = URI.create("https://other.example.com/i/1/token/_files/0/0_0.jpeg");
+		var sent = new AtomicInteger();
+		for (int i = 0; i < 5; i++)
+			hedger.send(other, request(hedger, other, sent, 50));
+		assertEquals(5, sent.get());
+	}
+
+	@Test
+	public void testOnlyReportedResponseTimesCount() throws Exception {
+		var hedger = new SlideScoreRequestHedger();
+		var sent = new AtomicInteger();
+		// The time spent waiting before the server answers, e.g. for a connection, isn't reported
+		for (int i = 0; i < 30; i++)
+			hedger.send(uri, request(hedger, uri, sent, 0, 200));
+		for (int i = 0; i < 10; i++)
+			hedger.send(uri, request(hedger, uri, sent, 50, 200));
+		assertEquals(40, sent.get());
+	}
+
+	@Test
+	public void testNoHedgingWhenDisabled() throws Exception {
+		SlideScoreSettings.setHedgingEnabled(false);
+		var hedger = new SlideScoreRequestHedger();
+		var sent = new AtomicInteger();
+		for (int i = 0; i < 30; i++)
+			hedger.send(uri, request(hedger, uri, sent, 0));
+		for (int i = 0; i < 5; i++)
+			hedger.send(uri, request(hedger, uri, sent, 50));
+		assertEquals(35, sent.get());
+	}
+
+	@Test
+	public void testFailureIsRethrown() {
+		var hedger = new SlideScoreRequestHedger();
+		var ex = assertThrows(IOException.class, () -> hedger.send(uri, () -> {
+			throw new IOException("failed");
+		}));
+		assertEquals("failed", ex.getMessage());
+	}
+}
@@ -0,0 +1,144 @@
+package qupath.lib.images.servers.slidescore;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestSlideScoreResponseCache {
+
+	private HttpServer server;
+	private URI uri;
+	// Requests answered with a body and with 304
+	private final AtomicInteger full = new AtomicInteger();
+	private final AtomicInteger notModified = new AtomicInteger();
+	private volatile String body = "[\"first\"]";
+	private volatile String etag = "\"1\"";
+
+	@BeforeEach
+	public void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/Api/GetSlideDetails", exchange -> {
+			if (etag != null && etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				notModified.incrementAndGet();
+				exchange.sendResponseHeaders(304, -1);
+			} else {
+				full.incrementAndGet();
+				byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+				if (etag != null)
+					exchange.getResponseHeaders().add("ETag", etag);
+				exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+				exchange.sendResponseHeaders(200, bytes.length);
+				exchange.getResponseBody().write(bytes);
+			}
+			exchange.close();
+		});
+		server.start();
+		uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/Api/GetSlideDetails?imageId=1");
+	}
+
+	@AfterEach
+	public void stopServer() {
+		server.stop(0);
+	}
+
+	@Test
+	public void testFreshResponseIsUsedAsIs() throws Exception {
+		var client = new SlideScoreHttpClient();
+		assertEquals("[\"first\"]", client.getStringCached(uri, 60_000));
+		body = "[\"second\"]";
+		assertEquals("[\"first\"]", client.getStringCached(uri, 60_000));
+		assertEquals(1, full.get());
+		assertEquals(0, notModified.get());
+	}
+
+	@Test
+	public void testRevalidation() throws Exception {
+		var client = new SlideScoreHttpClient();
+		assertEquals("[\"first\"]", client.getStringCached(uri, 0));
+		// Unchanged, the server only confirms the cached copy
+		assertEquals("[\"first\"]", client.getStringCached(uri, 0));
+		assertEquals(1, full.get());
+		assertEquals(1, notModified.get());
+
+		// Changed, the new version replaces the cached one
+		body = "[\"second\"]";
+		etag = "\"2\"";
+		assertEquals("[\"second\"]", client.getStringCached(uri, 0));
+		assertEquals("[\"second\"]", client.getStringCached(uri, 0));
+		assertEquals(2, full.get());
+		assertEquals(2, notModified.get());
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		var client = new SlideScoreHttpClient();
+		client.getStringCached(uri, 60_000);
+		client.invalidate(uri);
+		client.getStringCached(uri, 60_000);
+		assertEquals(2, full.get());
+		assertEquals(0, notModified.get());
+	}
+
+	@Test
+	public void testWithoutValidator() throws Exception {
+		etag = null;
+		var client = new SlideScoreHttpClient();
+		client.getStringCached(uri, 0);
+		client.getStringCached(uri, 0);
+		// Nothing to revalidate with, so the response isn't kept
+		assertEquals(2, full.get());
+	}
+
+	@Test
+	public void testEntry() throws Exception {
+		var entry = new SlideScoreResponseCache.Entry("body", "\"1\"", null, System.currentTimeMillis() - 10_000);
+		assertTrue(entry.isRevalidatable());
+		assertTrue(entry.getAgeMillis() >= 10_000);
+		var revalidated = entry.revalidated();
+		assertEquals("body", revalidated.getBody());
+		assertEquals("\"1\"", revalidated.getETag());
+		assertTrue(revalidated.getAgeMillis() < 10_000);
+		assertFalse(new SlideScoreResponseCache.Entry("body", null, null, 0).isRevalidatable());
+		assertTrue(new SlideScoreResponseCache.Entry("body", null, "Wed, 21 Oct 2015 07:28:00 GMT", 0).isRevalidatable());
+	}
+
+	@Test
+	public void testEviction() {
+		var cache = new SlideScoreResponseCache();
+		int size = (int) (SlideScoreResponseCache.MAX_CHARS / 8);
+		var large = "x".repeat(size);
+		for (int i = 0; i < 8; i++)
+			cache.put(URI.create("https://server/" + i), new SlideScoreResponseCache.Entry(large, "\"1\"", null, 0));
+		// Using the first one makes the second the least recently used
+		assertNotNull(cache.get(URI.create("https://server/0")));
+		cache.put(URI.create("https://server/8"), new SlideScoreResponseCache.Entry(large, "\"1\"", null, 0));
+		assertNotNull(cache.get(URI.create("https://server/0")));
+		assertNull(cache.get(URI.create("https://server/1")));
+		assertNotNull(cache.get(URI.create("https://server/8")));
+	}
+
+	@Test
+	public void testTooLargeIsNotCached() {
+		var cache = new SlideScoreResponseCache();
+		var uri = URI.create("https://server/large");
+		var huge = "x".repeat((int) (SlideScoreResponseCache.MAX_CHARS / 4) + 1);
+		cache.put(uri, new SlideScoreResponseCache.Entry("small", "\"1\"", null, 0));
+		cache.put(uri, new SlideScoreResponseCache.Entry(huge, "\"2\"", null, 0));
+		// The older copy is outdated, so it is removed as well
+		assertNull(cache.get(uri));
+	}
+}
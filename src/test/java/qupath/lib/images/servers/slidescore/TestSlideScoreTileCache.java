@@ -0,0 +1,154 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestSlideScoreTileCache {
+
+	@TempDir
+	Path directory;
+
+	private long maxSizeBytes;
+
+	@BeforeEach
+	public void saveSettings() {
+		maxSizeBytes = SlideScoreSettings.getTileCacheMaxSizeBytes();
+		SlideScoreSettings.setTileCacheMaxSizeBytes(300);
+	}
+
+	@AfterEach
+	public void restoreSettings() {
+		SlideScoreSettings.setTileCacheMaxSizeBytes(maxSizeBytes);
+	}
+
+	private static SlideScoreTileKey key(int x) {
+		return new SlideScoreTileKey("server/i/1", 0, x, 0, 256, 256);
+	}
+
+	private static byte[] bytes(int value) {
+		var bytes = new byte[100];
+		bytes[0] = (byte) value;
+		return bytes;
+	}
+
+	private long countTiles() throws Exception {
+		try (Stream<Path> stream = Files.walk(directory)) {
+			return stream.filter(p -> p.toString().endsWith(".tile")).count();
+		}
+	}
+
+	@Test
+	public void testPutAndGet() throws Exception {
+		var cache = new SlideScoreTileCache(directory);
+		assertNull(cache.get(key(0)));
+		cache.put(key(0), bytes(1));
+		assertTrue(cache.contains(key(0)));
+		assertArrayEquals(bytes(1), cache.get(key(0)));
+		// The token isn't part of the key, the same tile of a renewed link is found
+		assertFalse(cache.contains(new SlideScoreTileKey("server/i/2", 0, 0, 0, 256, 256)));
+		assertEquals(100, cache.getSizeBytes());
+
+		cache.put(key(0), bytes(2));
+		assertArrayEquals(bytes(2), cache.get(key(0)));
+		assertEquals(100, cache.getSizeBytes());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		var cache = new SlideScoreTileCache(directory);
+		cache.put(key(0), bytes(0));
+		cache.put(key(1), bytes(1));
+		cache.put(key(2), bytes(2));
+		// Reading the oldest tile makes the second one the least recently used
+		cache.get(key(0));
+		cache.put(key(3), bytes(3));
+		assertTrue(cache.contains(key(0)));
+		assertFalse(cache.contains(key(1)));
+		assertTrue(cache.contains(key(2)));
+		assertTrue(cache.contains(key(3)));
+		assertEquals(300, cache.getSizeBytes());
+		assertEquals(3, countTiles());
+	}
+
+	@Test
+	public void testTooLargeIsNotCached() throws Exception {
+		var cache = new SlideScoreTileCache(directory);
+		cache.put(key(0), new byte[301]);
+		assertFalse(cache.contains(key(0)));
+		assertEquals(0, cache.getSizeBytes());
+		assertEquals(0, countTiles());
+	}
+
+	@Test
+	public void testIndexIsRebuiltAfterRestart() throws Exception {
+		var cache = new SlideScoreTileCache(directory);
+		for (int i = 0; i < 3; i++)
+			cache.put(key(i), bytes(i));
+		// Last access of the tiles as a previous session left it, the second tile is the oldest
+		long now = System.currentTimeMillis();
+		try (Stream<Path> stream = Files.walk(directory)) {
+			for (var path : (Iterable<Path>) stream.filter(p -> p.toString().endsWith(".tile"))::iterator) {
+				long age = path.getFileName().toString().startsWith("0_1_") ? 3 : 1;
+				Files.setLastModifiedTime(path, FileTime.fromMillis(now - age * 60 * 60 * 1000));
+			}
+		}
+
+		var restarted = new SlideScoreTileCache(directory);
+		assertEquals(300, restarted.getSizeBytes());
+		for (int i = 0; i < 3; i++)
+			assertTrue(restarted.contains(key(i)));
+
+		// A smaller cache drops the least recently used tile when it starts
+		SlideScoreSettings.setTileCacheMaxSizeBytes(200);
+		var smaller = new SlideScoreTileCache(directory);
+		assertEquals(200, smaller.getSizeBytes());
+		assertFalse(smaller.contains(key(1)));
+		assertTrue(smaller.contains(key(0)));
+		assertTrue(smaller.contains(key(2)));
+		assertEquals(2, countTiles());
+	}
+
+	@Test
+	public void testLastAccessIsWrittenRarely() throws Exception {
+		var cache = new SlideScoreTileCache(directory);
+		cache.put(key(0), bytes(0));
+		Path path;
+		try (Stream<Path> stream = Files.walk(directory)) {
+			path = stream.filter(p -> p.toString().endsWith(".tile")).findFirst().orElseThrow();
+		}
+		long now = System.currentTimeMillis();
+		// Accessed recently enough, a read doesn't write the file's time
+		var recent = FileTime.fromMillis(now - 10 * 60 * 1000);
+		Files.setLastModifiedTime(path, recent);
+		cache.get(key(0));
+		assertEquals(recent, Files.getLastModifiedTime(path));
+
+		Files.setLastModifiedTime(path, FileTime.fromMillis(now - 2 * SlideScoreTileCache.TOUCH_INTERVAL_MILLIS));
+		cache.get(key(0));
+		assertTrue(Files.getLastModifiedTime(path).toMillis() >= now);
+	}
+
+	@Test
+	public void testClear() throws Exception {
+		var cache = new SlideScoreTileCache(directory);
+		cache.put(key(0), bytes(0));
+		cache.put(key(1), bytes(1));
+		cache.clear();
+		assertFalse(cache.contains(key(0)));
+		assertEquals(0, cache.getSizeBytes());
+		assertEquals(0, countTiles());
+	}
+}
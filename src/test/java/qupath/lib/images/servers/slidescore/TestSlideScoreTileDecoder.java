@@ -0,0 +1,82 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class TestSlideScoreTileDecoder {
+
+	private static byte[] encode(BufferedImage img, String format) throws IOException {
+		var stream = new ByteArrayOutputStream();
+		ImageIO.write(img, format, stream);
+		return stream.toByteArray();
+	}
+
+	private static BufferedImage filled(int type, Color color) {
+		var img = new BufferedImage(16, 16, type);
+		var g2d = img.createGraphics();
+		g2d.setColor(color);
+		g2d.fillRect(0, 0, 16, 16);
+		g2d.dispose();
+		return img;
+	}
+
+	@Test
+	public void testRgbJpeg() throws IOException {
+		var img = SlideScoreTileDecoder.decode(encode(filled(BufferedImage.TYPE_INT_RGB, Color.RED), "jpeg"), 16, 16, null);
+		assertEquals(BufferedImage.TYPE_INT_RGB, img.getType());
+		assertEquals(16, img.getWidth());
+		var color = new Color(img.getRGB(8, 8));
+		assertEquals(255, color.getRed(), 5);
+		assertEquals(0, color.getGreen(), 5);
+	}
+
+	@Test
+	public void testGrayPng() throws IOException {
+		// PNGs can't be decoded straight into an RGB image
+		var img = SlideScoreTileDecoder.decode(encode(filled(BufferedImage.TYPE_BYTE_GRAY, Color.GRAY), "png"), 16, 16, null);
+		assertEquals(BufferedImage.TYPE_INT_RGB, img.getType());
+		assertEquals(16, img.getWidth());
+		assertEquals(16, img.getHeight());
+		var color = new Color(img.getRGB(8, 8));
+		assertEquals(color.getRed(), color.getGreen());
+		assertEquals(color.getRed(), color.getBlue());
+		assertEquals(128, color.getRed(), 2);
+	}
+
+	@Test
+	public void testTransparentPng() throws IOException {
+		var img = SlideScoreTileDecoder.decode(encode(filled(BufferedImage.TYPE_INT_ARGB, new Color(0, 0, 255, 0)), "png"),
+				16, 16, Color.WHITE);
+		assertEquals(BufferedImage.TYPE_INT_RGB, img.getType());
+		assertEquals(Color.WHITE.getRGB(), img.getRGB(8, 8));
+	}
+
+	@Test
+	public void testOtherSizeIsDrawnToTile() throws IOException {
+		var img = SlideScoreTileDecoder.decode(encode(filled(BufferedImage.TYPE_INT_RGB, Color.BLACK), "jpeg"), 32, 24, Color.WHITE);
+		assertEquals(BufferedImage.TYPE_INT_RGB, img.getType());
+		assertEquals(32, img.getWidth());
+		assertEquals(24, img.getHeight());
+		assertEquals(0, new Color(img.getRGB(8, 8)).getRed(), 5);
+	}
+
+	@Test
+	public void testImagesAreNotShared() throws IOException {
+		var bytes = encode(filled(BufferedImage.TYPE_INT_RGB, Color.RED), "jpeg");
+		assertNotSame(SlideScoreTileDecoder.decode(bytes, 16, 16, null), SlideScoreTileDecoder.decode(bytes, 16, 16, null));
+	}
+
+	@Test
+	public void testInvalidBytes() {
+		assertThrows(IOException.class, () -> SlideScoreTileDecoder.decode(new byte[] {1, 2, 3, 4}, 16, 16, null));
+	}
+}
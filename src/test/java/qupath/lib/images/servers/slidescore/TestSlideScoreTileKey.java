@@ -0,0 +1,61 @@
+package qupath.lib.images.servers.slidescore;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+public class TestSlideScoreTileKey {
+
+	@Test
+	public void testSlideIdIgnoresToken() {
+		var first = URI.create("https://slidescore.example.com/i/123/tokenA/_files/SlideScoreMetadata.json");
+		var renewed = URI.create("https://SlideScore.Example.com/i/123/tokenB/_files/SlideScoreMetadata.json");
+		assertEquals("slidescore.example.com/i/123", SlideScoreTileKey.getSlideId(first));
+		assertEquals(SlideScoreTileKey.getSlideId(first), SlideScoreTileKey.getSlideId(renewed));
+	}
+
+	@Test
+	public void testSlideIdKeepsServerAndImage() {
+		var slide = URI.create("https://slidescore.example.com/i/123/token/_files/SlideScoreMetadata.json");
+		var otherImage = URI.create("https://slidescore.example.com/i/124/token/_files/SlideScoreMetadata.json");
+		var otherServer = URI.create("https://other.example.com/i/123/token/_files/SlideScoreMetadata.json");
+		var otherPort = URI.create("https://slidescore.example.com:8443/i/123/token/_files/SlideScoreMetadata.json");
+		assertNotEquals(SlideScoreTileKey.getSlideId(slide), SlideScoreTileKey.getSlideId(otherImage));
+		assertNotEquals(SlideScoreTileKey.getSlideId(slide), SlideScoreTileKey.getSlideId(otherServer));
+		assertNotEquals(SlideScoreTileKey.getSlideId(slide), SlideScoreTileKey.getSlideId(otherPort));
+	}
+
+	@Test
+	public void testSlideIdOfUnknownLink() {
+		// Without /i/ the whole path is used, but never the query
+		var uri = URI.create("https://slidescore.example.com/slides/abc.json?token=secret");
+		assertEquals("slidescore.example.com/slides/abc.json", SlideScoreTileKey.getSlideId(uri));
+		assertEquals("slidescore.example.com/i/123", SlideScoreTileKey.getSlideId(URI.create("https://slidescore.example.com/i/123")));
+	}
+
+	@Test
+	public void testEquality() {
+		var key = new SlideScoreTileKey("server/i/1", 2, 512, 1024, 256, 256);
+		var same = new SlideScoreTileKey("server/i/1", 2, 512, 1024, 256, 256);
+		assertEquals(key, same);
+		assertEquals(key.hashCode(), same.hashCode());
+		assertNotEquals(key, new SlideScoreTileKey("server/i/2", 2, 512, 1024, 256, 256));
+		assertNotEquals(key, new SlideScoreTileKey("server/i/1", 1, 512, 1024, 256, 256));
+		assertNotEquals(key, new SlideScoreTileKey("server/i/1", 2, 0, 1024, 256, 256));
+		assertNotEquals(key, new SlideScoreTileKey("server/i/1", 2, 512, 0, 256, 256));
+		assertNotEquals(key, new SlideScoreTileKey("server/i/1", 2, 512, 1024, 128, 256));
+		assertNotEquals(key, new SlideScoreTileKey("server/i/1", 2, 512, 1024, 256, 128));
+	}
+
+	@Test
+	public void testFileNameIsUniquePerTile() {
+		var key = new SlideScoreTileKey("server/i/1", 2, 512, 1024, 256, 128);
+		assertEquals("2_512_1024_256_128.tile", key.getFileName());
+		// The slide is the folder, so tiles of different slides may share the name
+		assertEquals(key.getFileName(), new SlideScoreTileKey("server/i/2", 2, 512, 1024, 256, 128).getFileName());
+		assertNotEquals(key.getFileName(), new SlideScoreTileKey("server/i/1", 2, 512, 1024, 128, 256).getFileName());
+	}
+}